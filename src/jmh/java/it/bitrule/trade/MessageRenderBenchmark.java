@@ -0,0 +1,107 @@
+package it.bitrule.trade;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rendering a message by replacing the placeholders in the raw string and parsing it
+ * with MiniMessage on every call, as it was done before, against rendering a {@link MessageTemplate}
+ * compiled once from the same string.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageRenderBenchmark {
+
+    private static final String PREFIX = "<gradient:#9483FD:#80CFFD><b>Tradeos</b></gradient> <gray>►</gray> ";
+
+    /**
+     * A chat message with plain text values, like most of the messages.
+     */
+    private static final String COUNTDOWN = "<trade_prefix><white>El comercio con <yellow>%player%</yellow> se completará en <dark_green>%remaining%</dark_green>.</white>";
+    private static final String[] COUNTDOWN_PARAMS = {"player", "remaining"};
+
+    /**
+     * A line with component values, which the old path had to serialize back into MiniMessage.
+     */
+    private static final String REQUEST_RECEIVED = "  <dark_gray>[</dark_gray>%accept% <dark_gray>|</dark_gray> %deny%<dark_gray>]</dark_gray>";
+    private static final String[] REQUEST_RECEIVED_PARAMS = {"accept", "deny"};
+
+    private static final String[] PLAYERS = {"bitrule", "Notch", "jeb_", "Dinnerbone", "Grumm", "Searge", "Marc", "Tahg"};
+
+    private Component prefix;
+
+    private MessageTemplate countdownTemplate;
+    private MessageTemplate requestReceivedTemplate;
+
+    private Component accept;
+    private Component deny;
+
+    private int counter = 0;
+
+    @Setup
+    public void setup() {
+        this.prefix = MiniMessage.miniMessage().deserialize(PREFIX);
+
+        this.countdownTemplate = MessageTemplate.compile(COUNTDOWN, COUNTDOWN_PARAMS, this.prefix);
+        this.requestReceivedTemplate = MessageTemplate.compile(REQUEST_RECEIVED, REQUEST_RECEIVED_PARAMS, this.prefix);
+
+        this.accept = MiniMessage.miniMessage().deserialize("<click:run_command:'/trade accept bitrule'><green>Aceptar</green></click>");
+        this.deny = MiniMessage.miniMessage().deserialize("<click:run_command:'/trade deny bitrule'><red>Rechazar</red></click>");
+    }
+
+    @Benchmark
+    public Component countdownLegacy() {
+        int tick = this.counter++;
+
+        return this.legacyRender(COUNTDOWN, COUNTDOWN_PARAMS, PLAYERS[tick & 7], (tick % 5) + "s");
+    }
+
+    @Benchmark
+    public Component countdownTemplate() {
+        int tick = this.counter++;
+
+        return this.countdownTemplate.render(new Component[]{
+                Component.text(PLAYERS[tick & 7]),
+                Component.text((tick % 5) + "s")
+        });
+    }
+
+    @Benchmark
+    public Component requestReceivedLegacy() {
+        return this.legacyRender(REQUEST_RECEIVED, REQUEST_RECEIVED_PARAMS, this.accept, this.deny);
+    }
+
+    @Benchmark
+    public Component requestReceivedTemplate() {
+        return this.requestReceivedTemplate.render(new Component[]{this.accept, this.deny});
+    }
+
+    /**
+     * The render path that was used before the templates, every call replaces the placeholders
+     * in the raw string, parses it and then replaces the prefix tag in the parsed tree.
+     */
+    private Component legacyRender(String output, String[] params, Object... replacements) {
+        for (int i = 0; i < params.length; i++) {
+            Object replacement = replacements[i];
+            if (replacement instanceof Component) {
+                replacement = MiniMessage.miniMessage().serialize((Component) replacement);
+            }
+
+            output = output.replace("%" + params[i] + "%", replacement instanceof String ? (String) replacement : replacement.toString());
+        }
+
+        return MiniMessage.miniMessage()
+                .deserialize(output)
+                .replaceText(builder -> builder.matchLiteral("<trade_prefix>").replacement(this.prefix));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+package it.bitrule.trade.component;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding the items of a trade with the {@link ItemSnapshotCodec}.
+ * The items are fake payloads of the size of serialized items, the codec never looks inside them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ItemSnapshotCodecBenchmark {
+
+    private static final int TRADES = 64;
+
+    private ItemSnapshot[][] trades;
+    private byte[][] encodedTrades;
+
+    private int counter = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42L);
+
+        // A pool of items shared by the trades, like the common materials of a server.
+        byte[][] pool = new byte[32][];
+        for (int index = 0; index < pool.length; index++) {
+            pool[index] = new byte[150 + random.nextInt(300)];
+            Arrays.fill(pool[index], (byte) index);
+        }
+
+        this.trades = new ItemSnapshot[TRADES][];
+        this.encodedTrades = new byte[TRADES][];
+        for (int trade = 0; trade < TRADES; trade++) {
+            this.trades[trade] = new ItemSnapshot[]{side(random, pool), side(random, pool)};
+            this.encodedTrades[trade] = ItemSnapshotCodec.encode(this.trades[trade]);
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return ItemSnapshotCodec.encode(this.trades[this.counter++ & (TRADES - 1)]);
+    }
+
+    @Benchmark
+    public ItemSnapshot[] decode() {
+        return ItemSnapshotCodec.decode(this.encodedTrades[this.counter++ & (TRADES - 1)]);
+    }
+
+    private static ItemSnapshot side(Random random, byte[][] pool) {
+        int size = random.nextInt(16);
+
+        int[] slots = new int[size];
+        byte[][] items = new byte[size][];
+        int[] amounts = new int[size];
+        for (int index = 0; index < size; index++) {
+            slots[index] = index;
+            items[index] = pool[random.nextInt(pool.length)];
+            amounts[index] = 1 + random.nextInt(64);
+        }
+
+        return new ItemSnapshot(slots, items, amounts);
+    }
+}
\ No newline at end of file
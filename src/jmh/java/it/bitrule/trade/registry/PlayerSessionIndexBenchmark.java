@@ -0,0 +1,125 @@
+package it.bitrule.trade.registry;
+
+import it.bitrule.trade.component.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link PlayerSessionIndex} with hundreds of online players churning requests
+ * from several threads, as it happens on region threaded servers.
+ * Half of the players are trading in pairs and the other half keep sending, removing
+ * and clearing requests between them, while the click path looks up the transactions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlayerSessionIndexBenchmark {
+
+    /**
+     * One of each this many request operations is a player leaving, which clears all their requests.
+     */
+    private static final int CLEAR_EVERY = 64;
+
+    @Param({"500", "2000"})
+    private int players;
+
+    private PlayerSessionIndex index;
+
+    /**
+     * The ids of the players, the first half are trading and the second half only send requests.
+     */
+    private UUID[] playerIds;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.index = new PlayerSessionIndex();
+        this.playerIds = new UUID[this.players];
+
+        for (int i = 0; i < this.players; i++) {
+            this.playerIds[i] = UUID.randomUUID();
+        }
+
+        for (int i = 0; i + 1 < this.players / 2; i += 2) {
+            Transaction transaction = new Transaction(UUID.randomUUID(), this.playerIds[i], this.playerIds[i + 1]);
+
+            this.index.bindTransaction(this.playerIds[i], transaction);
+            this.index.bindTransaction(this.playerIds[i + 1], transaction);
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long requestChurn(Cursor cursor) {
+        return this.churn(cursor);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public long mixedChurn(Cursor cursor) {
+        return this.churn(cursor);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public Transaction mixedLookup(Cursor cursor) {
+        return this.index.transaction(this.playerIds[cursor.next(this.players)]);
+    }
+
+    /**
+     * Sends a request between two players of the second half, or removes it if it was already sent.
+     * Sometimes the sender leaves instead, clearing all of their requests.
+     */
+    private long churn(Cursor cursor) {
+        int half = this.players / 2;
+
+        UUID sender = this.playerIds[half + cursor.next(this.players - half)];
+        if (cursor.next(CLEAR_EVERY) == 0) return this.index.clearRequests(sender);
+
+        UUID recipient = this.playerIds[half + cursor.next(this.players - half)];
+        if (sender.equals(recipient)) return 0L;
+
+        long stamp = this.index.addRequest(sender, recipient);
+        if (stamp == 0L && this.index.removeRequest(sender, recipient)) return 1L;
+
+        return stamp;
+    }
+
+    /**
+     * The random source of each benchmark thread, a xorshift so it doesn't show up in the results.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int seed;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.seed = (int) System.nanoTime() | 1;
+        }
+
+        int next(int bound) {
+            int x = this.seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            this.seed = x;
+
+            return (x & Integer.MAX_VALUE) % bound;
+        }
+    }
+}
\ No newline at end of file
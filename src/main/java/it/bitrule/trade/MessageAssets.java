@@ -2,6 +2,7 @@ package it.bitrule.trade;
 
 import lombok.NonNull;
 import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.JoinConfiguration;
 import net.kyori.adventure.text.TextComponent;
 import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.minimessage.MiniMessage;
@@ -10,9 +11,10 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 public enum MessageAssets {
 
@@ -27,6 +29,10 @@ public enum MessageAssets {
     SENDER_ALREADY_SENT_REQUEST("sender_already_sent_request", "player"),
     RECEPTOR_ALREADY_SENT_REQUEST("receptor_already_sent_request", "player"),
 
+    REQUEST_RATE_LIMITED("request_rate_limited"),
+    SENDER_TOO_MANY_REQUESTS("sender_too_many_requests"),
+    RECEPTOR_TOO_MANY_REQUESTS("receptor_too_many_requests", "player"),
+
     REQUEST_SENT("request_sent", "player"),
     REQUEST_RECEIVED("request_received.message", "player", "accept", "deny"),
     REQUEST_RECEIVED_ACCEPT_HOVER("request_received.accept_hover", "player"),
@@ -39,6 +45,9 @@ public enum MessageAssets {
     REQUEST_DENIED("request_denied", "player"),
     REQUEST_WAS_DENIED("request_was_denied", "player"),
 
+    REQUEST_EXPIRED("request_expired", "player"),
+    REQUEST_RECEIVED_EXPIRED("request_received_expired", "player"),
+
     TRANSACTION_CANCELLED("transaction_cancelled", "player"),
     TRANSACTION_WAS_CANCELLED("transaction_was_cancelled", "player"),
 
@@ -50,6 +59,25 @@ public enum MessageAssets {
     TRANSACTION_ENDING_COUNTDOWN("transaction_ending_countdown", "player", "remaining"),
     TRANSACTION_ENDED("transaction_ended", "player"),
 
+    MAILBOX_STORED("mailbox_stored", "amount"),
+    MAILBOX_DELIVERED("mailbox_delivered", "amount"),
+    MAILBOX_EMPTY("mailbox_empty"),
+
+    NO_PERMISSION("no_permission"),
+    FEATURE_UNAVAILABLE("feature_unavailable"),
+    PLAYER_NOT_FOUND("player_not_found", "player"),
+
+    HISTORY_COMMAND_USAGE("history_command_usage"),
+    HISTORY_HEADER("history_header", "player"),
+    HISTORY_ENTRY("history_entry", "date", "sender", "receptor", "lookup"),
+    HISTORY_EMPTY("history_empty", "player"),
+    HISTORY_INVALID_PAGE("history_invalid_page"),
+    HISTORY_FAILED("history_failed"),
+
+    LOOKUP_NOT_FOUND("lookup_not_found", "id"),
+    LOOKUP_HEADER("lookup_header", "id", "date", "sender", "receptor"),
+    LOOKUP_SIDE("lookup_side", "player", "items"),
+
     MENU_TITLE("menu.title", "player"),
 
     MENU_STATE_OPTION_LORE_SELF_NOT_DONE("menu.state_option.lore.self.not_done"),
@@ -73,9 +101,23 @@ public enum MessageAssets {
 
     private static @Nullable Component PREFIX_COMPONENT = null;
 
+    /**
+     * The components of the internal paths, parsed the first time they are requested.
+     */
+    private static final @NonNull Map<String, Component> INTERNAL_COMPONENTS = new ConcurrentHashMap<>();
+
     private final @NonNull String path;
     private final @NonNull String[] params;
 
+    /**
+     * The template compiled from the path, or null if the path is missing or is a list.
+     */
+    private @Nullable MessageTemplate template = null;
+    /**
+     * The templates compiled from each line of the path, or null if the path is not a list.
+     */
+    private @Nullable List<MessageTemplate> templates = null;
+
     MessageAssets(@NonNull String path, @NonNull String... params) {
         this.path = path;
         this.params = params;
@@ -87,20 +129,21 @@ public enum MessageAssets {
      * @return a list of components built from the path with the given replacements
      */
     public @NonNull List<Component> buildMany(@NonNull Object... replacements) {
-        if (this.params.length > replacements.length) {
-            throw new IllegalArgumentException("The replacements length is less than the params length. Expected: " + this.params.length + ", got: " + replacements.length);
-        }
+        Component[] values = this.values(replacements);
 
-        if (messagesYamlFile == null) {
-            throw new NullPointerException("The messages.yml file is not loaded");
+        if (this.templates == null) {
+            List<Component> output = new ArrayList<>();
+            output.add(this.template != null ? this.template.render(values) : NO_PATH.apply(this.path));
+
+            return output;
         }
 
-        List<String> output = messagesYamlFile.getStringList(this.path);
-        if (output.isEmpty()) return new ArrayList<>() {{ this.add(NO_PATH.apply(MessageAssets.this.path)); }};
+        List<Component> output = new ArrayList<>(this.templates.size());
+        for (MessageTemplate lineTemplate : this.templates) {
+            output.add(lineTemplate.render(values));
+        }
 
-        return output.stream()
-                .map(line -> this.internalBuild(line, replacements))
-                .collect(Collectors.toList());
+        return output;
     }
 
     /**
@@ -109,6 +152,21 @@ public enum MessageAssets {
      * @return a component built from the path with the given replacements
      */
     public @NonNull Component build(@NonNull Object... replacements) {
+        Component[] values = this.values(replacements);
+
+        if (this.template != null) return this.template.render(values);
+        if (this.templates == null) return NO_PATH.apply(this.path);
+
+        return Component.join(JoinConfiguration.newlines(), this.buildMany(replacements));
+    }
+
+    /**
+     * Converts the replacements into the values of the template slots.
+     * The components are used as they are, the rest of objects are used as plain text.
+     * @param replacements the replacements to be used in the message
+     * @return the values of the template slots
+     */
+    private @NonNull Component[] values(@NonNull Object[] replacements) {
         if (this.params.length > replacements.length) {
             throw new IllegalArgumentException("The replacements length is less than the params length. Expected: " + this.params.length + ", got: " + replacements.length);
         }
@@ -117,42 +175,35 @@ public enum MessageAssets {
             throw new NullPointerException("The messages.yml file is not loaded");
         }
 
-        return Optional.ofNullable(messagesYamlFile.getString(this.path))
-                .map(output -> this.internalBuild(output, replacements))
-                .orElseGet(() -> NO_PATH.apply(this.path));
-    }
-
-    private @NonNull Component internalBuild(@Nullable String output, @NonNull Object... replacements) {
-        if (output == null) {
-            throw new NullPointerException("The path " + this.path + " is not found in the messages.yml file");
-        }
-
-        int paramCount = this.params.length;
-        if (paramCount > replacements.length) {
-            throw new IllegalArgumentException("The replacements length is less than the params length. Expected: " + paramCount + ", got: " + replacements.length);
+        Component[] values = new Component[this.params.length];
+        for (int i = 0; i < values.length; i++) {
+            Object replacement = replacements[i];
+            values[i] = replacement instanceof Component ? (Component) replacement : Component.text(String.valueOf(replacement));
         }
 
-        if (paramCount == 0)
-            return MiniMessage.miniMessage()
-                    .deserialize(output)
-                    .replaceText(builder -> builder.matchLiteral("<trade_prefix>")
-                            .replacement(PREFIX_COMPONENT != null ? PREFIX_COMPONENT : NO_PATH.apply("prefix"))
-                    );
+        return values;
+    }
 
-        for (int i = 0; i < paramCount; i++) {
-            Object replacement = replacements[i];
-            if (replacement instanceof Component) {
-                replacement = MiniMessage.miniMessage().serialize((Component) replacement);
+    /**
+     * Compiles the templates of the path from the messages.yml file.
+     * @param yamlFile the YamlFile instance that contains the messages
+     * @param prefix the component that replaces the prefix tag
+     */
+    private void compile(@NonNull YamlConfiguration yamlFile, @NonNull Component prefix) {
+        if (yamlFile.isList(this.path)) {
+            List<MessageTemplate> lineTemplates = new ArrayList<>();
+            for (String line : yamlFile.getStringList(this.path)) {
+                lineTemplates.add(MessageTemplate.compile(line, this.params, prefix));
             }
 
-            output = output.replace("%" + this.params[i] + "%", replacement instanceof String ? (String) replacement : replacement.toString());
-        }
+            this.templates = lineTemplates.isEmpty() ? null : List.copyOf(lineTemplates);
+            this.template = null;
+        } else {
+            String output = yamlFile.getString(this.path);
 
-        return MiniMessage.miniMessage()
-                .deserialize(output)
-                .replaceText(builder -> builder.matchLiteral("<trade_prefix>")
-                        .replacement(PREFIX_COMPONENT != null ? PREFIX_COMPONENT : NO_PATH.apply("prefix"))
-                );
+            this.template = output != null ? MessageTemplate.compile(output, this.params, prefix) : null;
+            this.templates = null;
+        }
     }
 
     /**
@@ -161,14 +212,15 @@ public enum MessageAssets {
      * @return a component representing the message at the given path
      */
     public static @NonNull Component internal(@NonNull String path) {
-        if (messagesYamlFile == null) {
+        YamlConfiguration yamlFile = messagesYamlFile;
+        if (yamlFile == null) {
             throw new NullPointerException("The messages.yml file is not loaded");
         }
 
-        String output = messagesYamlFile.getString(path);
-        if (output != null) return MiniMessage.miniMessage().deserialize(output);
-
-        return NO_PATH.apply(path);
+        return INTERNAL_COMPONENTS.computeIfAbsent(path, key -> Optional.ofNullable(yamlFile.getString(key))
+                .map(MiniMessage.miniMessage()::deserialize)
+                .orElseGet(() -> NO_PATH.apply(key))
+        );
     }
 
     public static @NonNull List<Component> replace(@NonNull List<Component> components, @NonNull List<Component> replacements) {
@@ -198,5 +250,10 @@ public enum MessageAssets {
         PREFIX_COMPONENT = Optional.ofNullable(messagesYamlFile.getString("prefix"))
                 .map(MiniMessage.miniMessage()::deserialize)
                 .orElse(NO_PATH.apply("prefix"));
+
+        // Compile every message once, so building them doesn't parse anything.
+        for (MessageAssets messageAsset : values()) {
+            messageAsset.compile(yamlFile, PREFIX_COMPONENT);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+package it.bitrule.trade;
+
+import lombok.NonNull;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message that was parsed once from the messages.yml file.
+ * The placeholders (%param%) are compiled into slots of the component tree, and the
+ * &lt;trade_prefix&gt; tag is already resolved, so rendering the message is just
+ * replacing the slots with the given values, without parsing anything.
+ * The branches of the tree that don't hold any slot are shared between renders.
+ */
+final class MessageTemplate {
+
+    private static final @NonNull String PREFIX_TAG = "<trade_prefix>";
+
+    /**
+     * The root of the compiled tree.
+     */
+    private final @NonNull Node root;
+
+    private MessageTemplate(@NonNull Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Renders the message replacing the slots with the given values.
+     * @param values the values of the slots, indexed as the params of the message
+     * @return the rendered component
+     */
+    @NonNull Component render(@NonNull Component[] values) {
+        return this.root.render(values);
+    }
+
+    /**
+     * Compiles a raw MiniMessage string into a template.
+     * @param raw the raw MiniMessage string
+     * @param params the names of the params, each one is a %param% slot
+     * @param prefix the component that replaces the &lt;trade_prefix&gt; tag
+     * @return the compiled template
+     */
+    static @NonNull MessageTemplate compile(@NonNull String raw, @NonNull String[] params, @NonNull Component prefix) {
+        String[] tokens = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            tokens[i] = "%" + params[i] + "%";
+        }
+
+        return new MessageTemplate(compile(MiniMessage.miniMessage().deserialize(raw), tokens, prefix));
+    }
+
+    private static @NonNull Node compile(@NonNull Component component, @NonNull String[] tokens, @NonNull Component prefix) {
+        List<Component> children = component.children();
+
+        Node[] childNodes = new Node[children.size()];
+        boolean dynamicChildren = false;
+        for (int i = 0; i < childNodes.length; i++) {
+            childNodes[i] = compile(children.get(i), tokens, prefix);
+            dynamicChildren |= !(childNodes[i] instanceof StaticNode);
+        }
+
+        if (component instanceof TextComponent textComponent) {
+            List<Object> segments = split(textComponent.content(), tokens, prefix);
+            if (segments != null) {
+                return new TextNode(
+                        Component.text("", textComponent.style()),
+                        segments.toArray(),
+                        childNodes
+                );
+            }
+        }
+
+        if (!dynamicChildren) return new StaticNode(component);
+
+        return new ParentNode(component, childNodes);
+    }
+
+    /**
+     * Splits the content of a text component by the slots it holds.
+     * @param content the content to split
+     * @param tokens the placeholders of the params
+     * @param prefix the component that replaces the &lt;trade_prefix&gt; tag
+     * @return the segments, a {@link Component} for the fixed parts and an {@link Integer} for
+     * the slots, or null if the content doesn't hold any slot
+     */
+    private static @Nullable List<Object> split(@NonNull String content, @NonNull String[] tokens, @NonNull Component prefix) {
+        List<Object> segments = null;
+
+        int from = 0;
+        while (true) {
+            int index = content.indexOf(PREFIX_TAG, from);
+            int length = PREFIX_TAG.length();
+            int slot = -1;
+
+            for (int i = 0; i < tokens.length; i++) {
+                int tokenIndex = content.indexOf(tokens[i], from);
+                if (tokenIndex < 0 || (index >= 0 && tokenIndex >= index)) continue;
+
+                index = tokenIndex;
+                length = tokens[i].length();
+                slot = i;
+            }
+
+            if (index < 0) break;
+            if (segments == null) segments = new ArrayList<>();
+
+            if (index > from) segments.add(Component.text(content.substring(from, index)));
+            segments.add(slot < 0 ? prefix : slot);
+
+            from = index + length;
+        }
+
+        if (segments != null && from < content.length()) segments.add(Component.text(content.substring(from)));
+
+        return segments;
+    }
+
+    private interface Node {
+
+        @NonNull Component render(@NonNull Component[] values);
+    }
+
+    /**
+     * A branch without slots, it's rendered as it was parsed.
+     */
+    private record StaticNode(@NonNull Component component) implements Node {
+
+        @Override
+        public @NonNull Component render(@NonNull Component[] values) {
+            return this.component;
+        }
+    }
+
+    /**
+     * A component whose children hold slots.
+     */
+    private record ParentNode(@NonNull Component component, @NonNull Node[] children) implements Node {
+
+        @Override
+        public @NonNull Component render(@NonNull Component[] values) {
+            return this.component.children(renderAll(this.children, values, null));
+        }
+    }
+
+    /**
+     * A text component whose content holds slots. The content is rendered as children
+     * of an empty text component with the same style, so the values inherit it.
+     */
+    private record TextNode(@NonNull TextComponent base, @NonNull Object[] segments, @NonNull Node[] children) implements Node {
+
+        @Override
+        public @NonNull Component render(@NonNull Component[] values) {
+            List<Component> output = new ArrayList<>(this.segments.length + this.children.length);
+            for (Object segment : this.segments) {
+                output.add(segment instanceof Integer slot ? values[slot] : (Component) segment);
+            }
+
+            return this.base.children(renderAll(this.children, values, output));
+        }
+    }
+
+    private static @NonNull List<Component> renderAll(@NonNull Node[] nodes, @NonNull Component[] values, @Nullable List<Component> output) {
+        if (output == null) output = new ArrayList<>(nodes.length);
+
+        for (Node node : nodes) {
+            output.add(node.render(values));
+        }
+
+        return output;
+    }
+}
\ No newline at end of file
@@ -12,6 +12,7 @@ import org.bukkit.Material;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.*;
@@ -35,28 +36,130 @@ public final class Trade extends JavaPlugin {
             45,46,47,48
     };
 
+    /**
+     * The slots where each player places the items they offer.
+     */
+    public static final byte VIEWER_ROLE = 1;
+    /**
+     * The slots where each player sees the items the other player offers.
+     */
+    public static final byte MIRROR_ROLE = 2;
+    /**
+     * The slots of the glass panes.
+     */
+    public static final byte GLASS_ROLE = 3;
+    /**
+     * The slots of the ready buttons.
+     */
+    public static final byte BUTTON_ROLE = 4;
+
+    /**
+     * The role of each slot of the menu, indexed by the slot.
+     */
+    private static final byte[] SLOT_ROLE = new byte[54];
+    /**
+     * The mirror slot of each viewer slot, indexed by the viewer slot.
+     * The slots that are not a viewer slot hold -1.
+     */
+    private static final int[] MIRROR_SLOT = new int[54];
+
+    static {
+        Arrays.fill(MIRROR_SLOT, -1);
+
+        for (int slot : GLASS_SLOT) SLOT_ROLE[slot] = GLASS_ROLE;
+
+        SLOT_ROLE[12] = BUTTON_ROLE;
+        SLOT_ROLE[14] = BUTTON_ROLE;
+
+        for (int slot : VIEWER_SLOT) {
+            // Each row of the mirror side is shifted by the width of the viewer side.
+            int mirrorSlot;
+            if (slot <= 19) {
+                mirrorSlot = slot + 7;
+            } else if (slot <= 29) {
+                mirrorSlot = slot + 6;
+            } else {
+                mirrorSlot = slot + 5;
+            }
+
+            SLOT_ROLE[slot] = VIEWER_ROLE;
+            SLOT_ROLE[mirrorSlot] = MIRROR_ROLE;
+            MIRROR_SLOT[slot] = mirrorSlot;
+        }
+    }
+
+    /**
+     * The glass slots of the menu, boxed once to be used by every menu.
+     */
+    private static final @NonNull List<Integer> GLASS_SLOT_LIST = Arrays.stream(GLASS_SLOT).boxed().toList();
+
+    /**
+     * The filler item of the glass slots, built once on enable and shared by every menu.
+     * It doesn't have any action, the clicks are handled by the default click action of the menu.
+     */
+    private static @Nullable GuiItem GLASS_ITEM = null;
+
     public void onEnable() {
         this.saveResource("messages.yml", true);
 
         MessageAssets.adjustInternal(YamlConfiguration.loadConfiguration(new File(this.getDataFolder(), "messages.yml")));
 
+        GLASS_ITEM = ItemBuilder.from(Material.BLACK_STAINED_GLASS_PANE)
+                .name(Component.empty())
+                .lore(Component.empty())
+                .asGuiItem();
+
         TradeManager.getInstance().inject(this);
     }
 
+    public void onDisable() {
+        TradeManager.getInstance().shutdown();
+    }
+
+    /**
+     * Returns the role of a slot of the menu.
+     * @param slot the slot of the menu
+     * @return the role of the slot, or 0 if the slot is outside the menu
+     */
+    public static byte slotRole(int slot) {
+        return slot >= 0 && slot < SLOT_ROLE.length ? SLOT_ROLE[slot] : 0;
+    }
+
+    /**
+     * Checks if a slot of the menu is a viewer slot.
+     * @param slot the slot of the menu
+     * @return true if the slot is a viewer slot, false otherwise
+     */
+    public static boolean isViewerSlot(int slot) {
+        return slotRole(slot) == VIEWER_ROLE;
+    }
+
+    /**
+     * Returns the slot where the other player sees the item of a viewer slot.
+     * @param viewerSlot the viewer slot
+     * @return the mirror slot of the viewer slot
+     */
+    public static int mirrorSlot(int viewerSlot) {
+        int mirrorSlot = viewerSlot >= 0 && viewerSlot < MIRROR_SLOT.length ? MIRROR_SLOT[viewerSlot] : -1;
+        if (mirrorSlot < 0) {
+            throw new IllegalArgumentException("The slot " + viewerSlot + " is not a viewer slot");
+        }
+
+        return mirrorSlot;
+    }
+
     public static void showGui(@NonNull Player player, @NonNull Transaction transaction, @NonNull String receptorName) {
+        if (GLASS_ITEM == null) {
+            throw new IllegalStateException("The menu layout is not loaded");
+        }
+
         Gui gui = Gui.gui()
                 .rows(6)
                 .disableItemDrop()
                 .title(MessageAssets.MENU_TITLE.build(receptorName))
                 .create();
 
-        gui.setItem(
-                Arrays.stream(GLASS_SLOT).boxed().toList(),
-                ItemBuilder.from(Material.BLACK_STAINED_GLASS_PANE)
-                        .name(Component.empty())
-                        .lore(Component.empty())
-                        .asGuiItem()
-        );
+        gui.setItem(GLASS_SLOT_LIST, GLASS_ITEM);
 
         gui.setItem(
                 12,
@@ -74,6 +177,9 @@ public final class Trade extends JavaPlugin {
         gui.setDefaultClickAction(TradeManager.getInstance()::clickEvent);
         gui.setDragAction(TradeManager.getInstance()::dragEvent);
 
+        // The inventory is kept by the transaction, so the other participant's thread never has to look it up from the player.
+        transaction.setInventory(player.getUniqueId(), gui.getInventory());
+
         gui.open(player);
     }
 }
\ No newline at end of file
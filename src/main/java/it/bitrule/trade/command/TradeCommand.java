@@ -15,7 +15,7 @@ import java.util.LinkedList;
 public final class TradeCommand extends Command {
 
     public TradeCommand() {
-        super("trade", "Trade with another player", "/trade <player> | /trade accept <player>", new LinkedList<>());
+        super("trade", "Trade with another player", "/trade <player> | /trade accept <player> | /trade mailbox | /trade history <player> | /trade lookup <id>", new LinkedList<>());
     }
 
     /**
@@ -45,6 +45,12 @@ public final class TradeCommand extends Command {
             TradeManager.getInstance().deny((Player) sender, args.length > 1 ? args[1] : "");
         } else if (args[0].equals("accept")) {
             TradeManager.getInstance().accept((Player) sender, args.length > 1 ? args[1] : "");
+        } else if (args[0].equals("mailbox")) {
+            TradeManager.getInstance().mailbox((Player) sender, true);
+        } else if (args[0].equals("history")) {
+            TradeManager.getInstance().history((Player) sender, args.length > 1 ? args[1] : "", args.length > 2 ? args[2] : null);
+        } else if (args[0].equals("lookup")) {
+            TradeManager.getInstance().lookup((Player) sender, args.length > 1 ? args[1] : "");
         } else {
             TradeManager.getInstance().request((Player) sender, args[0]);
         }
@@ -1,71 +1,69 @@
 package it.bitrule.trade.component;
 
 import lombok.NonNull;
-import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
 import org.bson.Document;
+import org.bukkit.Material;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Optional;
+import java.util.UUID;
 
 /**
+ * A compact record of a change made at a slot of the trade menu.
+ * It only holds the data needed for the audit, the document is rendered
+ * on the log writer thread when the transaction is persisted.
+ * The changes are buffered by the {@link TransactionLog} of the transaction.
  * @param slot         The slot index where the item stack was changed.
- * @param oldItemStack The old item stack before the change.
- * @param newItemStack The new item stack after the change.
+ * @param actorId      The mojang id of the player who made the change.
+ * @param oldType      The type of the item stack before the change, null if the slot was empty.
+ * @param oldAmount    The amount of the item stack before the change.
+ * @param oldMetaHash  The hash of the item meta before the change, 0 if it didn't have meta.
+ * @param newType      The type of the item stack after the change, null if the slot is empty.
+ * @param newAmount    The amount of the item stack after the change.
+ * @param newMetaHash  The hash of the item meta after the change, 0 if it doesn't have meta.
+ * @param changeType   The type of the change.
  */
 public record ChangedItemStack(
         int slot,
-        @NonNull String playerName,
-        @Nullable ItemStack oldItemStack,
-        @Nullable ItemStack newItemStack,
+        @NonNull UUID actorId,
+        @Nullable Material oldType,
+        int oldAmount,
+        int oldMetaHash,
+        @Nullable Material newType,
+        int newAmount,
+        int newMetaHash,
         @NonNull ChangeType changeType
 ) {
 
-    public @NonNull Document asDocument(int id) {
-        StringBuilder builder = new StringBuilder(this.playerName).append(" ");
-        if (this.changeType == ChangeType.ADD) {
-            builder.append("added ");
-        } else if (this.changeType == ChangeType.REMOVE) {
-            builder.append("removed ");
-        } else if (this.changeType == ChangeType.CHANGE) {
-            builder.append("changed ");
-        }
-
-        int oldAmount = this.oldItemStack != null ? this.oldItemStack.getAmount() : 0;
-        int newAmount = this.newItemStack != null ? this.newItemStack.getAmount() : 0;
+    /**
+     * @return the difference between the new amount and the old amount
+     */
+    public int amountDelta() {
+        return this.newAmount - this.oldAmount;
+    }
 
-        int differenceAmount = newAmount - oldAmount;
+    public @NonNull Document asDocument(int id) {
+        return new Document("id", id)
+                .append("slot", this.slot)
+                .append("actor_id", this.actorId.toString())
+                .append("change", this.changeType.name())
+                .append("old_type", this.oldType != null ? this.oldType.name() : null)
+                .append("old_amount", this.oldAmount)
+                .append("old_meta_hash", this.oldMetaHash)
+                .append("new_type", this.newType != null ? this.newType.name() : null)
+                .append("new_amount", this.newAmount)
+                .append("new_meta_hash", this.newMetaHash)
+                .append("amount_delta", this.amountDelta());
+    }
 
-        builder.append("an item stack in slot ")
-                .append(this.slot)
-                .append(": [Old type=")
-                .append(this.oldItemStack != null ? this.oldItemStack.getType().name() : "Unknown")
-                .append(", Old Display Name=")
-                .append(Optional.ofNullable(this.oldItemStack)
-                        .map(ItemStack::getItemMeta)
-                        .map(ItemMeta::displayName)
-                        .map(displayName -> LegacyComponentSerializer.legacySection().serialize(displayName))
-                        .orElse("None")
-                )
-                .append(", Old amount=")
-                .append(oldAmount)
-                .append(", New type=")
-                .append(this.newItemStack != null ? this.newItemStack.getType().name() : "Unknown")
-                .append(", New Display Name=")
-                .append(Optional.ofNullable(this.newItemStack)
-                        .map(ItemStack::getItemMeta)
-                        .map(ItemMeta::displayName)
-                        .map(displayName -> LegacyComponentSerializer.legacySection().serialize(displayName))
-                        .orElse("None")
-                )
-                .append(", New amount=")
-                .append(newAmount)
-                .append(", Difference amount=")
-                .append(differenceAmount)
-                .append("]");
+    /**
+     * @param itemStack the item stack to hash
+     * @return the hash of the item meta, 0 if the item stack doesn't have meta
+     */
+    static int metaHash(@Nullable ItemStack itemStack) {
+        if (itemStack == null || !itemStack.hasItemMeta()) return 0;
 
-        return new Document("id", id).append("message", builder.toString());
+        return itemStack.getItemMeta().hashCode();
     }
 
     public enum ChangeType {
@@ -0,0 +1,62 @@
+package it.bitrule.trade.component;
+
+import lombok.NonNull;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.List;
+
+/**
+ * The items offered by a side of a trade, as they were when the transaction ended.
+ * Each item is kept as the bytes of {@link ItemStack#serializeAsBytes()} of a single item,
+ * so the enchantments, the meta and the rest of the data are kept, and the amount is stored apart.
+ * It's captured on the thread that owns the items and never modified after,
+ * so it can be encoded by the {@link ItemSnapshotCodec} from any thread.
+ * @param slots the slots of the trade GUI where the items were
+ * @param items the serialized items, with an amount of 1
+ * @param amounts the amounts of the items
+ */
+public record ItemSnapshot(int @NonNull [] slots, byte @NonNull [] @NonNull [] items, int @NonNull [] amounts) {
+
+    /**
+     * Captures the offered items, it must be called from the thread that owns them.
+     * @param slots the slots of the trade GUI where the items are
+     * @param itemStacks the items, in the same order as the slots
+     * @return the snapshot of the items
+     */
+    public static @NonNull ItemSnapshot capture(@NonNull List<Integer> slots, @NonNull List<ItemStack> itemStacks) {
+        int size = itemStacks.size();
+
+        int[] snapshotSlots = new int[size];
+        byte[][] items = new byte[size][];
+        int[] amounts = new int[size];
+        for (int index = 0; index < size; index++) {
+            ItemStack itemStack = itemStacks.get(index);
+
+            snapshotSlots[index] = slots.get(index);
+            items[index] = itemStack.asOne().serializeAsBytes();
+            amounts[index] = itemStack.getAmount();
+        }
+
+        return new ItemSnapshot(snapshotSlots, items, amounts);
+    }
+
+    /**
+     * @return the amount of items in the snapshot
+     */
+    public int size() {
+        return this.items.length;
+    }
+
+    /**
+     * Restores the items of the snapshot.
+     * @return the items, in the same order as the slots
+     */
+    public @NonNull ItemStack @NonNull [] toItemStacks() {
+        ItemStack[] itemStacks = new ItemStack[this.items.length];
+        for (int index = 0; index < itemStacks.length; index++) {
+            itemStacks[index] = ItemStack.deserializeBytes(this.items[index]).asQuantity(this.amounts[index]);
+        }
+
+        return itemStacks;
+    }
+}
\ No newline at end of file
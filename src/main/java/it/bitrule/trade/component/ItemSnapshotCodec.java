@@ -0,0 +1,140 @@
+package it.bitrule.trade.component;
+
+import lombok.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format of the {@link ItemSnapshot}s of a trade.
+ * The serialized items are stored once in a dictionary, and each side only holds
+ * the slot, the dictionary index and the amount of its items, so the items repeated
+ * across the trade (same material and meta, any amount) cost a few bytes each.
+ * The layout is:
+ * <pre>
+ * version (byte)
+ * dictionary size (varint), then for each entry: length (varint), bytes
+ * sides (varint), then for each side: items (varint), then for each item: slot, dictionary index, amount (varints)
+ * </pre>
+ * It doesn't touch the server, so it can run on any thread.
+ */
+public final class ItemSnapshotCodec {
+
+    public static final byte VERSION = 1;
+
+    private ItemSnapshotCodec() {
+    }
+
+    /**
+     * Encodes the snapshots of a trade.
+     * @param snapshots the snapshots, one per side of the trade
+     * @return the encoded snapshots
+     */
+    public static byte @NonNull [] encode(@NonNull ItemSnapshot @NonNull ... snapshots) {
+        Map<ByteBuffer, Integer> indexes = new HashMap<>();
+        List<byte[]> dictionary = new ArrayList<>();
+
+        int items = 0;
+        for (ItemSnapshot snapshot : snapshots) items += snapshot.size();
+
+        int[] references = new int[items];
+        int reference = 0;
+        for (ItemSnapshot snapshot : snapshots) {
+            for (byte[] item : snapshot.items()) {
+                Integer index = indexes.putIfAbsent(ByteBuffer.wrap(item), dictionary.size());
+                if (index == null) {
+                    index = dictionary.size();
+                    dictionary.add(item);
+                }
+
+                references[reference++] = index;
+            }
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(64 + items * 8);
+        output.write(VERSION);
+
+        writeVarInt(output, dictionary.size());
+        for (byte[] item : dictionary) {
+            writeVarInt(output, item.length);
+            output.write(item, 0, item.length);
+        }
+
+        reference = 0;
+        writeVarInt(output, snapshots.length);
+        for (ItemSnapshot snapshot : snapshots) {
+            writeVarInt(output, snapshot.size());
+
+            for (int index = 0; index < snapshot.size(); index++) {
+                writeVarInt(output, snapshot.slots()[index]);
+                writeVarInt(output, references[reference++]);
+                writeVarInt(output, snapshot.amounts()[index]);
+            }
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Decodes the snapshots of a trade.
+     * @param bytes the encoded snapshots
+     * @return the snapshots, one per side of the trade
+     */
+    public static @NonNull ItemSnapshot @NonNull [] decode(byte @NonNull [] bytes) {
+        ByteBuffer input = ByteBuffer.wrap(bytes);
+
+        byte version = input.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported item snapshot version: " + version);
+        }
+
+        byte[][] dictionary = new byte[readVarInt(input)][];
+        for (int index = 0; index < dictionary.length; index++) {
+            dictionary[index] = new byte[readVarInt(input)];
+            input.get(dictionary[index]);
+        }
+
+        ItemSnapshot[] snapshots = new ItemSnapshot[readVarInt(input)];
+        for (int side = 0; side < snapshots.length; side++) {
+            int size = readVarInt(input);
+
+            int[] slots = new int[size];
+            byte[][] items = new byte[size][];
+            int[] amounts = new int[size];
+            for (int index = 0; index < size; index++) {
+                slots[index] = readVarInt(input);
+                items[index] = dictionary[readVarInt(input)];
+                amounts[index] = readVarInt(input);
+            }
+
+            snapshots[side] = new ItemSnapshot(slots, items, amounts);
+        }
+
+        return snapshots;
+    }
+
+    private static void writeVarInt(@NonNull ByteArrayOutputStream output, int value) {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        output.write(value);
+    }
+
+    private static int readVarInt(@NonNull ByteBuffer input) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = input.get();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) return value;
+        }
+
+        throw new IllegalArgumentException("The varint is too long.");
+    }
+}
\ No newline at end of file
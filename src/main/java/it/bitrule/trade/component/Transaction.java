@@ -1,18 +1,58 @@
 package it.bitrule.trade.component;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NonNull;
-import org.bson.Document;
-import org.bukkit.scheduler.BukkitRunnable;
+import lombok.Setter;
+import org.bukkit.inventory.Inventory;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.UUID;
 
 @Data
 public final class Transaction {
 
+    /**
+     * The trade is open, the participants can offer items and mark themselves as ready.
+     */
+    public static final int OPEN = 0;
+    /**
+     * Both participants are ready and the countdown to end the trade is running.
+     */
+    public static final int COUNTDOWN = 1;
+    /**
+     * The countdown finished and the offered items are being exchanged.
+     */
+    public static final int COMMITTING = 2;
+    /**
+     * The offered items were exchanged.
+     */
+    public static final int ENDED = 3;
+    /**
+     * The trade was cancelled, because a participant closed the trade menu or disconnected.
+     */
+    public static final int CANCELLED = 4;
+
+    /**
+     * The bits of the state that hold the phase, the rest are the ready flags.
+     */
+    private static final int PHASE_MASK = 0x7;
+    private static final int SENDER_READY = 1 << 3;
+    private static final int RECEPTOR_READY = 1 << 4;
+
+    private static final @NonNull VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Transaction.class, "state", int.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
     /**
      * The unique identifier for the transaction.
      * This helps to distinguish between different trade transactions.
@@ -28,43 +68,64 @@ public final class Transaction {
     private final @NonNull UUID receptor;
 
     /**
-     * If the sender has marked their part of the trade as ready.
+     * The phase of the transaction and the ready flags of the participants, packed in a single int.
+     * The participants may be on different threads, so every transition is a compare and set,
+     * and every check is a single volatile read of a consistent state.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile int state = OPEN;
+
+    /**
+     * The trade GUI inventories of the sender and the receptor, set when the GUI is shown.
+     * The items offered by each player are taken from their own inventory when the transaction ends.
      */
-    private boolean senderReady = false;
+    private volatile @Nullable Inventory senderInventory = null;
+    private volatile @Nullable Inventory receptorInventory = null;
     /**
-     * If the receptor has marked their part of the trade as ready.
+     * This is the buffer of changes that are associated with the transaction.
+     * They are rendered as documents when the transaction is persisted.
      */
-    private boolean receptorReady = false;
+    private final @NonNull TransactionLog logs = new TransactionLog();
 
     /**
-     * This flag indicates whether the sender is on queue to finish their
-     * click on the trade menu.
-     * So if the flag is true, means he already clicked an item and is waiting
-     * to complete his task to avoid concurrency issues.
+     * @return the current phase of the transaction
      */
-    private boolean senderClicked = false;
+    public int getPhase() {
+        return this.state & PHASE_MASK;
+    }
+
     /**
-     * This flag indicates whether the receptor is on queue to finish their
-     * click on the trade menu.
+     * @return true if the sender has marked their part of the trade as ready
      */
-    private boolean receptorClicked = false;
+    public boolean isSenderReady() {
+        return (this.state & SENDER_READY) != 0;
+    }
 
     /**
-     * This flag indicates whether the trade transaction is cancelled.
-     * This can happen if either player closes the trade menu or someone disconnects during the trade.
+     * @return true if the receptor has marked their part of the trade as ready
      */
-    private boolean cancelled = false;
+    public boolean isReceptorReady() {
+        return (this.state & RECEPTOR_READY) != 0;
+    }
+
     /**
-     * This flag indicates whether the trade transaction is ended.
-     * So this means that both players have confirmed their part of the trade and the countdown has expired.
+     * This can happen if either player closes the trade menu or someone disconnects during the trade.
+     * @return true if the transaction was cancelled
      */
-    private boolean ended = false;
+    public boolean isCancelled() {
+        return this.getPhase() == CANCELLED;
+    }
 
-    private @Nullable BukkitRunnable bukkitRunnable = null;
     /**
-     * This is the list of logs that are associated with the transaction.
+     * So this means that both players have confirmed their part of the trade and the countdown has expired.
+     * @return true if the transaction is exchanging the items or has already exchanged them
      */
-    private final @NonNull List<Document> logs = new LinkedList<>();
+    public boolean isEnded() {
+        int phase = this.getPhase();
+
+        return phase == COMMITTING || phase == ENDED;
+    }
 
     /**
      * Returns the reader state of the player in the transaction.
@@ -72,33 +133,93 @@ public final class Transaction {
      * @return true if the player has marked their part of the trade as done, false otherwise
      */
     public boolean getReadyState(@NonNull UUID playerId) {
-        if (playerId.equals(this.sender)) return this.senderReady;
+        return (this.state & this.readyFlag(playerId)) != 0;
+    }
+
+    /**
+     * Toggles the ready state of a participant.
+     * Any change of the ready state stops the countdown, and the countdown starts once both participants are ready.
+     * @param playerId the mojang id of the participant
+     * @return the phase after the toggle, or -1 if the transaction was already ending or cancelled
+     */
+    public int toggleReady(@NonNull UUID playerId) {
+        int flag = this.readyFlag(playerId);
+
+        while (true) {
+            int state = this.state;
+            int phase = state & PHASE_MASK;
+            if (phase != OPEN && phase != COUNTDOWN) return -1;
 
-        return this.receptorReady;
+            int ready = (state ^ flag) & (SENDER_READY | RECEPTOR_READY);
+            int newPhase = phase == OPEN && ready == (SENDER_READY | RECEPTOR_READY) ? COUNTDOWN : OPEN;
+
+            if (STATE.compareAndSet(this, state, ready | newPhase)) return newPhase;
+        }
     }
 
     /**
-     * Returns the clicked state of the player in the transaction.
-     * @param playerId the mojang id of the player to check the clicked state for
-     * @return true if the player has clicked an item in the trade menu, false otherwise
+     * Moves the transaction from the countdown to the exchange of the items.
+     * It fails if the countdown was stopped or the transaction was cancelled in the meantime.
+     * @return true if the transaction is now exchanging the items
      */
-    public boolean getClickedValue(@NonNull UUID playerId) {
-        if (playerId.equals(this.sender)) return this.senderClicked;
+    public boolean tryCommit() {
+        return this.transition(COUNTDOWN, COMMITTING);
+    }
 
-        return this.receptorClicked;
+    /**
+     * Marks the transaction as ended, once the offered items were exchanged.
+     * @return true if the transaction was exchanging the items
+     */
+    public boolean markEnded() {
+        return this.transition(COMMITTING, ENDED);
     }
 
     /**
-     * Sets the clicked state of the player in the transaction.
-     * This method is created to avoid unnecessary repetition of code
-     * @param playerId the mojang id of the player to set the clicked state for
-     * @param value the clicked state to set, true if the player has clicked an item in the trade menu, false otherwise
+     * Marks the transaction as cancelled, if it was not ending nor cancelled before.
+     * The participants may be on different threads, so only one of cancelling and ending can win.
+     * @return true if the transaction was marked as cancelled by this call
      */
-    public void setClickedValue(@NonNull UUID playerId, boolean value) {
+    public boolean tryCancel() {
+        while (true) {
+            int state = this.state;
+            int phase = state & PHASE_MASK;
+            if (phase != OPEN && phase != COUNTDOWN) return false;
+
+            // The ready flags are cleared, a cancelled transaction has nobody ready.
+            if (STATE.compareAndSet(this, state, CANCELLED)) return true;
+        }
+    }
+
+    /**
+     * @param playerId the mojang id of the participant
+     * @return the trade GUI inventory of the participant, or null if it was not shown yet
+     */
+    public @Nullable Inventory getInventory(@NonNull UUID playerId) {
+        return playerId.equals(this.sender) ? this.senderInventory : this.receptorInventory;
+    }
+
+    /**
+     * @param playerId the mojang id of the participant
+     * @param inventory the trade GUI inventory shown to the participant
+     */
+    public void setInventory(@NonNull UUID playerId, @NonNull Inventory inventory) {
         if (playerId.equals(this.sender)) {
-            this.senderClicked = value;
+            this.senderInventory = inventory;
         } else {
-            this.receptorClicked = value;
+            this.receptorInventory = inventory;
         }
     }
+
+    private boolean transition(int from, int to) {
+        while (true) {
+            int state = this.state;
+            if ((state & PHASE_MASK) != from) return false;
+
+            if (STATE.compareAndSet(this, state, (state & ~PHASE_MASK) | to)) return true;
+        }
+    }
+
+    private int readyFlag(@NonNull UUID playerId) {
+        return playerId.equals(this.sender) ? SENDER_READY : RECEPTOR_READY;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+package it.bitrule.trade.component;
+
+import lombok.NonNull;
+import org.bson.Document;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Append buffer for the changes made during a transaction.
+ * Each change is stored in parallel primitive arrays instead of an object per change,
+ * and the arrays grow on demand. The buffered changes are handed over as a {@link Chunk},
+ * either when the buffer is spilled because it reached its cap or when the transaction ends,
+ * and the chunk is rendered into documents by the log writer thread.
+ * The participants of a trade may append from different threads on a region threaded server,
+ * so the buffer is guarded by its own lock, which is never contended on a single threaded server.
+ */
+public final class TransactionLog {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final @NonNull Material[] MATERIALS = Material.values();
+
+    private static final @NonNull ChangedItemStack.ChangeType[] CHANGE_TYPES = ChangedItemStack.ChangeType.values();
+
+    /**
+     * The id of the first buffered change, the ids start at 1 and keep counting across the spills.
+     */
+    private int firstId = 1;
+    /**
+     * The amount of chunks handed over.
+     */
+    private int parts = 0;
+
+    private int size = 0;
+
+    /**
+     * The slot and the change type of each change, packed as slot << 8 | change type.
+     * The sign bit is set when the change was made by the receptor.
+     */
+    private short @Nullable [] headers = null;
+    /**
+     * The types of the item stacks before and after each change, as material ordinal + 1, 0 means empty.
+     */
+    private short @Nullable [] oldTypes = null;
+    private short @Nullable [] newTypes = null;
+    private int @Nullable [] oldAmounts = null;
+    private int @Nullable [] newAmounts = null;
+    private int @Nullable [] oldMetaHashes = null;
+    private int @Nullable [] newMetaHashes = null;
+
+    /**
+     * Appends a change to the buffer.
+     * @param slot the slot index where the item stack was changed
+     * @param bySender true if the change was made by the sender, false if it was made by the receptor
+     * @param oldItemStack the item stack before the change
+     * @param newItemStack the item stack after the change
+     * @param changeType the type of the change
+     */
+    public synchronized void append(
+            int slot,
+            boolean bySender,
+            @Nullable ItemStack oldItemStack,
+            @Nullable ItemStack newItemStack,
+            @NonNull ChangedItemStack.ChangeType changeType
+    ) {
+        if (this.headers == null || this.size == this.headers.length) this.grow();
+
+        int index = this.size++;
+
+        this.headers[index] = (short) ((bySender ? 0 : 0x8000) | slot << 8 | changeType.ordinal());
+        this.oldTypes[index] = typeOf(oldItemStack);
+        this.newTypes[index] = typeOf(newItemStack);
+        this.oldAmounts[index] = oldItemStack != null ? oldItemStack.getAmount() : 0;
+        this.newAmounts[index] = newItemStack != null ? newItemStack.getAmount() : 0;
+        this.oldMetaHashes[index] = ChangedItemStack.metaHash(oldItemStack);
+        this.newMetaHashes[index] = ChangedItemStack.metaHash(newItemStack);
+    }
+
+    /**
+     * @return the amount of buffered changes
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the amount of chunks handed over so far
+     */
+    public synchronized int parts() {
+        return this.parts;
+    }
+
+    /**
+     * Hands over the buffered changes only if there are at least the given amount of them.
+     * The check and the drain are done holding the lock, so when two threads reach the cap
+     * at the same time only one of them gets the changes.
+     * @param min the min amount of buffered changes
+     * @return the chunk holding the buffered changes, or null if there were fewer changes
+     */
+    public synchronized @Nullable Chunk drainIfAtLeast(int min) {
+        if (this.size == 0 || this.size < min) return null;
+
+        return this.drain();
+    }
+
+    /**
+     * Hands over the buffered changes and empties the buffer.
+     * The arrays are moved into the chunk, so nothing is copied.
+     * @return the chunk holding the buffered changes
+     */
+    public synchronized @NonNull Chunk drain() {
+        Chunk chunk = new Chunk(
+                this.parts++,
+                this.firstId,
+                this.size,
+                this.headers,
+                this.oldTypes,
+                this.newTypes,
+                this.oldAmounts,
+                this.newAmounts,
+                this.oldMetaHashes,
+                this.newMetaHashes
+        );
+
+        this.firstId += this.size;
+        this.size = 0;
+
+        this.headers = null;
+        this.oldTypes = null;
+        this.newTypes = null;
+        this.oldAmounts = null;
+        this.newAmounts = null;
+        this.oldMetaHashes = null;
+        this.newMetaHashes = null;
+
+        return chunk;
+    }
+
+    private void grow() {
+        int capacity = this.headers == null ? INITIAL_CAPACITY : this.headers.length << 1;
+
+        this.headers = this.headers == null ? new short[capacity] : Arrays.copyOf(this.headers, capacity);
+        this.oldTypes = this.oldTypes == null ? new short[capacity] : Arrays.copyOf(this.oldTypes, capacity);
+        this.newTypes = this.newTypes == null ? new short[capacity] : Arrays.copyOf(this.newTypes, capacity);
+        this.oldAmounts = this.oldAmounts == null ? new int[capacity] : Arrays.copyOf(this.oldAmounts, capacity);
+        this.newAmounts = this.newAmounts == null ? new int[capacity] : Arrays.copyOf(this.newAmounts, capacity);
+        this.oldMetaHashes = this.oldMetaHashes == null ? new int[capacity] : Arrays.copyOf(this.oldMetaHashes, capacity);
+        this.newMetaHashes = this.newMetaHashes == null ? new int[capacity] : Arrays.copyOf(this.newMetaHashes, capacity);
+    }
+
+    private static short typeOf(@Nullable ItemStack itemStack) {
+        return itemStack != null ? (short) (itemStack.getType().ordinal() + 1) : 0;
+    }
+
+    private static @Nullable Material materialOf(short type) {
+        return type == 0 ? null : MATERIALS[type - 1];
+    }
+
+    /**
+     * The changes handed over by a {@link TransactionLog}.
+     * A chunk is never modified after it's created, so it can be rendered from any thread.
+     */
+    public record Chunk(
+            int part,
+            int firstId,
+            int size,
+            short @Nullable [] headers,
+            short @Nullable [] oldTypes,
+            short @Nullable [] newTypes,
+            int @Nullable [] oldAmounts,
+            int @Nullable [] newAmounts,
+            int @Nullable [] oldMetaHashes,
+            int @Nullable [] newMetaHashes
+    ) {
+
+        /**
+         * Returns the change at the given index of the chunk.
+         * @param index the index of the change
+         * @param sender the mojang id of the sender of the transaction
+         * @param receptor the mojang id of the receptor of the transaction
+         * @return the change
+         */
+        public @NonNull ChangedItemStack get(int index, @NonNull UUID sender, @NonNull UUID receptor) {
+            if (index < 0 || index >= this.size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + this.size);
+            }
+
+            short header = this.headers[index];
+
+            return new ChangedItemStack(
+                    (header >> 8) & 0x7F,
+                    header < 0 ? receptor : sender,
+                    materialOf(this.oldTypes[index]),
+                    this.oldAmounts[index],
+                    this.oldMetaHashes[index],
+                    materialOf(this.newTypes[index]),
+                    this.newAmounts[index],
+                    this.newMetaHashes[index],
+                    CHANGE_TYPES[header & 0xFF]
+            );
+        }
+
+        /**
+         * Renders the changes of the chunk as documents.
+         * @param sender the mojang id of the sender of the transaction
+         * @param receptor the mojang id of the receptor of the transaction
+         * @return the rendered documents
+         */
+        public @NonNull List<Document> asDocuments(@NonNull UUID sender, @NonNull UUID receptor) {
+            List<Document> documents = new ArrayList<>(this.size);
+            for (int i = 0; i < this.size; i++) {
+                documents.add(this.get(i, sender, receptor).asDocument(this.firstId + i));
+            }
+
+            return documents;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,30 @@
+package it.bitrule.trade.listener;
+
+import it.bitrule.trade.manager.TradeManager;
+import it.bitrule.trade.registry.OnlinePlayerIndex;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+@RequiredArgsConstructor
+public final class PlayerJoinListener implements Listener {
+
+    /**
+     * Index of the online players by their name.
+     */
+    private final @NonNull OnlinePlayerIndex onlinePlayerIndex;
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoinEvent(@NonNull final PlayerJoinEvent ev) {
+        this.onlinePlayerIndex.add(ev.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoinDeliverEvent(@NonNull final PlayerJoinEvent ev) {
+        // The items stored in the mailbox are delivered once the player has joined.
+        TradeManager.getInstance().mailbox(ev.getPlayer(), false);
+    }
+}
\ No newline at end of file
@@ -1,5 +1,6 @@
 package it.bitrule.trade.listener;
 
+import it.bitrule.trade.registry.OnlinePlayerIndex;
 import it.bitrule.trade.registry.RequestsRegistry;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -15,11 +16,16 @@ public final class PlayerQuitListener implements Listener {
      * Registry for managing trade requests.
      */
     private final @NonNull RequestsRegistry requestsRegistry;
+    /**
+     * Index of the online players by their name.
+     */
+    private final @NonNull OnlinePlayerIndex onlinePlayerIndex;
 
     @EventHandler
     public void onPlayerQuitEvent(@NonNull final PlayerQuitEvent ev) {
         Player player = ev.getPlayer();
-        this.requestsRegistry.clearReceptors(player.getUniqueId());
-        this.requestsRegistry.clearSent(player.getUniqueId());
+        this.onlinePlayerIndex.remove(player);
+
+        this.requestsRegistry.clear(player.getUniqueId());
     }
 }
\ No newline at end of file
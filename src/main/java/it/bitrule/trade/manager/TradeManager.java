@@ -1,12 +1,32 @@
 package it.bitrule.trade.manager;
 
-import com.mongodb.client.MongoClients;
-import it.bitrule.trade.Trade;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import it.bitrule.trade.MessageAssets;
 import it.bitrule.trade.command.TradeCommand;
 import it.bitrule.trade.listener.InventoryCloseListener;
+import it.bitrule.trade.listener.PlayerJoinListener;
 import it.bitrule.trade.listener.PlayerQuitListener;
+import it.bitrule.trade.persistence.LocalTradeLogSink;
+import it.bitrule.trade.persistence.MongoTradeLogSink;
+import it.bitrule.trade.persistence.NoopTradeLogSink;
+import it.bitrule.trade.persistence.TradeDatabase;
+import it.bitrule.trade.persistence.TradeHistory;
+import it.bitrule.trade.persistence.TradeLogJournal;
+import it.bitrule.trade.persistence.TradeLogSink;
+import it.bitrule.trade.persistence.TradeLogWriter;
+import it.bitrule.trade.persistence.TradeMailbox;
+import it.bitrule.trade.persistence.TradeRetention;
+import it.bitrule.trade.registry.OnlinePlayerIndex;
+import it.bitrule.trade.registry.PlayerSessionIndex;
+import it.bitrule.trade.registry.RequestExpiryWheel;
+import it.bitrule.trade.registry.RequestRateLimiter;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
+import it.bitrule.trade.scheduler.TradeScheduler;
+import it.bitrule.trade.task.CountdownDriver;
+import it.bitrule.trade.task.RequestExpiryTask;
 import it.bitrule.trade.usecase.*;
 import lombok.Getter;
 import lombok.NonNull;
@@ -22,8 +42,16 @@ import org.bukkit.inventory.Inventory;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @RequiredArgsConstructor
 public final class TradeManager {
@@ -86,10 +114,278 @@ public final class TradeManager {
      * in the trade GUI.
      */
     private @Nullable TradeClickEventUseCase clickEventUseCase;
+    /**
+     * This is the use case that delivers the items
+     * stored in the mailbox of a player.
+     */
+    private @Nullable TradeMailboxUseCase mailboxUseCase;
+    /**
+     * This is the use case that shows the history
+     * of the trades to the staff.
+     */
+    private @Nullable TradeHistoryUseCase historyUseCase;
+    /**
+     * This is the write-behind pipeline that writes
+     * the logs of the finished transactions in batches.
+     */
+    private @Nullable TradeLogWriter logWriter;
+    /**
+     * This is the Mongo client used by the logs, the mailbox
+     * and the history, closed on {@link #shutdown()}.
+     */
+    private @Nullable TradeDatabase database;
+    /**
+     * This is the mailbox where the items that didn't fit
+     * in the inventory of a player are stored.
+     */
+    private @Nullable TradeMailbox mailbox;
+    /**
+     * This is the read side of the trade logs,
+     * used to look up the trades of a player.
+     */
+    private @Nullable TradeHistory history;
+    /**
+     * This is the background task that compacts and deletes
+     * the old trade logs of the collection.
+     */
+    private @Nullable TradeRetention retention;
+    /**
+     * This is the worker that runs the {@link ThreadAffinity.Kind#ASYNC} use cases
+     * submitted by the commands, so their lookups and messages don't run on the main thread.
+     * It's a single thread, so the commands never race each other.
+     */
+    private @Nullable ExecutorService commandExecutor;
+    /**
+     * This is the scheduler that runs the tasks on the thread
+     * that owns each player, or on the main thread if the server is not region threaded.
+     */
+    private @Nullable TradeScheduler scheduler;
 
     public void inject(@NonNull final JavaPlugin plugin) {
         Configuration configuration = plugin.getConfig();
 
+        // The requests expire after the TTL, a TTL of 0 means that they never expire.
+        long requestTtlSeconds = configuration.getLong("request-ttl-seconds", 60L);
+        if (requestTtlSeconds < 0 || requestTtlSeconds > RequestExpiryWheel.MAX_TTL_TICKS) {
+            throw new IllegalArgumentException("The request TTL must be between 0 and " + RequestExpiryWheel.MAX_TTL_TICKS + " seconds.");
+        }
+
+        TradeScheduler scheduler = TradeScheduler.create(plugin);
+        this.scheduler = scheduler;
+
+        RequestExpiryWheel expiryWheel = requestTtlSeconds > 0 ? new RequestExpiryWheel((int) requestTtlSeconds) : null;
+
+        PlayerSessionIndex sessionIndex = new PlayerSessionIndex();
+        TransactionRegistry transactionRegistry = new TransactionRegistry(sessionIndex);
+        RequestsRegistry requestsRegistry = new RequestsRegistry(sessionIndex, expiryWheel);
+
+        // A single task moves the expiry wheel one second forward on each run.
+        if (expiryWheel != null) scheduler.runGlobalTimer(new RequestExpiryTask(expiryWheel, requestsRegistry), 20L, 20L);
+        int requestsPerMinute = configuration.getInt("request-limits.per-minute", 6);
+        RequestRateLimiter rateLimiter = requestsPerMinute > 0
+                ? new RequestRateLimiter(requestsPerMinute, Math.max(1, configuration.getInt("request-limits.burst", 3)))
+                : null;
+
+        // The buckets outlive the sessions of the players, the full ones are evicted once per minute.
+        if (rateLimiter != null) scheduler.runGlobalTimer(rateLimiter::evictFull, 1200L, 1200L);
+
+        OnlinePlayerIndex onlinePlayerIndex = new OnlinePlayerIndex();
+        Bukkit.getOnlinePlayers().forEach(onlinePlayerIndex::add);
+
+        Bukkit.getPluginManager().registerEvents(new PlayerJoinListener(onlinePlayerIndex), plugin);
+        Bukkit.getPluginManager().registerEvents(new PlayerQuitListener(requestsRegistry, onlinePlayerIndex), plugin);
+        Bukkit.getPluginManager().registerEvents(new InventoryCloseListener(), plugin);
+
+        Bukkit.getCommandMap().register("trade", new TradeCommand());
+
+        this.requestUseCase = new TradeRequestUseCase(
+                transactionRegistry,
+                requestsRegistry,
+                onlinePlayerIndex,
+                rateLimiter,
+                configuration.getInt("request-limits.max-outgoing", 5),
+                configuration.getInt("request-limits.max-incoming", 10),
+                plugin.getLogger()
+        );
+
+        this.commandExecutor = new ThreadPoolExecutor(
+                1,
+                1,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(configuration.getInt("command-worker.queue-capacity", 1024)),
+                task -> {
+                    Thread thread = new Thread(task, "Trade Command Worker");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+        );
+
+        String logSinkType = configuration.getString("log-sink", "MONGO").toUpperCase(Locale.ROOT);
+
+        TradeDatabase database = null;
+        TradeLogJournal journal = null;
+        TradeLogSink logSink;
+        switch (logSinkType) {
+            case "MONGO" -> {
+                database = this.createDatabase(plugin, configuration);
+                logSink = new MongoTradeLogSink(database.getLogsCollection());
+
+                // Only a remote sink needs the journal in front of it, a local one is as durable
+                journal = new TradeLogJournal(
+                        plugin.getDataFolder().toPath().resolve("journal"),
+                        configuration.getLong("journal.segment-size-kb", 8192L) * 1024L,
+                        plugin.getLogger()
+                );
+
+                try {
+                    journal.open();
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Failed to open the trade logs journal.", ex);
+                }
+            }
+            case "LOCAL" -> {
+                LocalTradeLogSink localSink = new LocalTradeLogSink(
+                        plugin.getDataFolder().toPath().resolve("store"),
+                        configuration.getLong("local-store.segment-size-kb", 16384L) * 1024L,
+                        configuration.getInt("local-store.compaction-threshold", 8),
+                        plugin.getLogger()
+                );
+
+                try {
+                    localSink.open();
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Failed to open the local trade logs store.", ex);
+                }
+
+                logSink = localSink;
+            }
+            case "NONE" -> logSink = new NoopTradeLogSink();
+            default -> throw new IllegalArgumentException("The log sink must be MONGO, LOCAL or NONE.");
+        }
+
+        this.database = database;
+
+        this.logWriter = new TradeLogWriter(
+                logSink,
+                journal,
+                plugin.getLogger(),
+                configuration.getInt("log-writer.queue-capacity", 4096),
+                configuration.getInt("log-writer.batch-size", 100),
+                configuration.getLong("log-writer.flush-interval-ms", 1000L),
+                configuration.getLong("log-writer.offer-timeout-ms", 50L)
+        );
+        this.logWriter.start();
+
+        // The mailbox and the history query the logs collection, so they are only available with Mongo.
+        TradeMailbox mailbox = null;
+        TradeHistory history = null;
+        if (database != null) {
+            // The mails are stored in the same collection as the trade logs, with their own write path.
+            mailbox = new TradeMailbox(
+                    database.getLogsCollection(),
+                    plugin.getLogger(),
+                    configuration.getInt("mailbox.queue-capacity", 1024)
+            );
+            mailbox.start();
+
+            history = new TradeHistory(
+                    database.getLogsCollection(),
+                    plugin.getLogger(),
+                    configuration.getInt("history.page-size", 10),
+                    configuration.getInt("history.cache-size", 128),
+                    configuration.getLong("history.cache-ttl-seconds", 30L) * 1000L,
+                    configuration.getInt("history.queue-capacity", 256)
+            );
+            history.start();
+        }
+
+        this.mailbox = mailbox;
+        this.history = history;
+
+        // The retention only applies to the Mongo collection, it's disabled when all the ages are 0.
+        long maxAgeDays = configuration.getLong("retention.max-age-days", 0L);
+        long compactAfterDays = configuration.getLong("retention.compact-after-days", 0L);
+        long orphanPartsMaxAgeDays = configuration.getLong("retention.orphan-parts-max-age-days", 7L);
+        if (database != null && (maxAgeDays > 0 || compactAfterDays > 0 || orphanPartsMaxAgeDays > 0)) {
+            TradeRetention retention = new TradeRetention(
+                    database.getLogsCollection(),
+                    plugin.getLogger(),
+                    TimeUnit.DAYS.toMillis(maxAgeDays),
+                    TimeUnit.DAYS.toMillis(compactAfterDays),
+                    TimeUnit.DAYS.toMillis(orphanPartsMaxAgeDays),
+                    configuration.getBoolean("retention.archive.enabled", false) ? plugin.getDataFolder().toPath().resolve("archive") : null,
+                    configuration.getInt("retention.batch-size", 500),
+                    configuration.getInt("retention.archive.segment-documents", 50000)
+            );
+            retention.start(TimeUnit.MINUTES.toMillis(configuration.getLong("retention.interval-minutes", 60L)));
+            this.retention = retention;
+        }
+
+        ItemSettlement.OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = ItemSettlement.OverflowPolicy.valueOf(configuration.getString("settlement.overflow-policy", "MAILBOX").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("The settlement overflow policy must be DROP, ENDER_CHEST or MAILBOX.", ex);
+        }
+
+        if (overflowPolicy == ItemSettlement.OverflowPolicy.MAILBOX && mailbox == null) {
+            plugin.getLogger().warning("The mailbox needs the MONGO log sink, the ENDER_CHEST overflow policy is used instead.");
+            overflowPolicy = ItemSettlement.OverflowPolicy.ENDER_CHEST;
+        }
+
+        ItemSettlement settlement = new ItemSettlement(overflowPolicy, mailbox, plugin.getLogger());
+
+        this.acceptUseCase = new TradeAcceptUseCase(
+                transactionRegistry,
+                requestsRegistry,
+                onlinePlayerIndex,
+                scheduler,
+                settlement,
+                plugin.getLogger()
+        );
+        this.denyUseCase = new TradeDenyUseCase(transactionRegistry, requestsRegistry, onlinePlayerIndex, plugin.getLogger());
+
+        this.mailboxUseCase = mailbox != null
+                ? new TradeMailboxUseCase(transactionRegistry, requestsRegistry, mailbox, settlement, scheduler, plugin.getLogger())
+                : null;
+        this.historyUseCase = history != null
+                ? new TradeHistoryUseCase(transactionRegistry, requestsRegistry, history, scheduler, plugin.getLogger())
+                : null;
+
+        // A single task advances the countdowns of all the transactions once per second.
+        CountdownDriver countdownDriver = new CountdownDriver(scheduler);
+        scheduler.runGlobalTimer(countdownDriver, 20L, 20L);
+
+        this.readyUseCase = new TradeReadyUseCase(transactionRegistry, requestsRegistry, scheduler, countdownDriver, plugin.getLogger());
+        this.endUseCase = new TradeEndUseCase(
+                this.logWriter,
+                transactionRegistry,
+                requestsRegistry,
+                scheduler,
+                settlement,
+                plugin.getLogger()
+        );
+        this.cancelUseCase = new TradeCancelUseCase(transactionRegistry, requestsRegistry, scheduler, countdownDriver, settlement, plugin.getLogger());
+
+        int maxBufferedLogs = configuration.getInt("transaction-log.max-buffered-changes", 512);
+        if (maxBufferedLogs <= 0) {
+            throw new IllegalArgumentException("The transaction log max buffered changes must be a positive value.");
+        }
+
+        SynchronizeCoalescer synchronizeCoalescer = new SynchronizeCoalescer(plugin, scheduler, this.logWriter, maxBufferedLogs);
+        this.dragEventUseCase = new TradeDragEventUseCase(transactionRegistry, requestsRegistry, synchronizeCoalescer, plugin.getLogger());
+        this.clickEventUseCase = new TradeClickEventUseCase(transactionRegistry, requestsRegistry, synchronizeCoalescer, plugin.getLogger());
+    }
+
+    /**
+     * Creates the Mongo client from the config, used by the {@code MONGO} log sink.
+     * @param plugin the plugin that owns the client
+     * @param configuration the config of the plugin
+     * @return the database holding the logs collection
+     */
+    private @NonNull TradeDatabase createDatabase(@NonNull JavaPlugin plugin, @NonNull Configuration configuration) {
         String mongoUri = configuration.getString("mongo-uri");
         if (mongoUri == null || mongoUri.isEmpty()) {
             throw new IllegalArgumentException("Mongo URI is not configured in the plugin's config file.");
@@ -105,30 +401,74 @@ public final class TradeManager {
             throw new IllegalArgumentException("Mongo collection is not configured in the plugin's config file.");
         }
 
-        TransactionRegistry transactionRegistry = new TransactionRegistry();
-        RequestsRegistry requestsRegistry = new RequestsRegistry();
-        Bukkit.getPluginManager().registerEvents(new PlayerQuitListener(requestsRegistry), plugin);
-        Bukkit.getPluginManager().registerEvents(new InventoryCloseListener(), plugin);
+        // The settings of the config override the ones of the uri.
+        List<MongoCompressor> compressors = new ArrayList<>();
+        for (String compressorName : configuration.getStringList("mongo-client.compressors")) {
+            MongoCompressor compressor = TradeDatabase.compressor(compressorName, plugin.getLogger());
+            if (compressor != null) compressors.add(compressor);
+        }
 
-        Bukkit.getCommandMap().register("trade", new TradeCommand());
+        MongoClientSettings mongoSettings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(mongoUri))
+                .applicationName(plugin.getName())
+                .applyToConnectionPoolSettings(pool -> pool
+                        .minSize(configuration.getInt("mongo-client.pool.min-size", 0))
+                        .maxSize(configuration.getInt("mongo-client.pool.max-size", 10))
+                        .maxWaitTime(configuration.getLong("mongo-client.pool.max-wait-ms", 2000L), TimeUnit.MILLISECONDS)
+                        .maxConnectionIdleTime(configuration.getLong("mongo-client.pool.max-idle-seconds", 60L), TimeUnit.SECONDS)
+                )
+                .applyToClusterSettings(cluster -> cluster
+                        .serverSelectionTimeout(configuration.getLong("mongo-client.server-selection-timeout-ms", 5000L), TimeUnit.MILLISECONDS)
+                )
+                .applyToSocketSettings(socket -> socket
+                        .connectTimeout(configuration.getInt("mongo-client.connect-timeout-ms", 5000), TimeUnit.MILLISECONDS)
+                        .readTimeout(configuration.getInt("mongo-client.socket-timeout-ms", 10000), TimeUnit.MILLISECONDS)
+                )
+                .writeConcern(TradeDatabase.writeConcern(configuration.getString("mongo-client.write-concern", "1")))
+                .compressorList(compressors)
+                .build();
+
+        TradeDatabase database = new TradeDatabase(mongoSettings, mongoDatabase, mongoCollection, plugin.getLogger());
+        database.connect();
+
+        return database;
+    }
+
+    /**
+     * Stops the components that were started on {@link #inject(JavaPlugin)}.
+     * The queued trade logs are written before returning, then the Mongo client is closed.
+     */
+    public void shutdown() {
+        if (this.commandExecutor != null) {
+            this.commandExecutor.shutdownNow();
+            this.commandExecutor = null;
+        }
 
-        this.requestUseCase = new TradeRequestUseCase(transactionRegistry, requestsRegistry, plugin.getLogger());
-        this.acceptUseCase = new TradeAcceptUseCase(transactionRegistry, requestsRegistry, plugin.getLogger());
-        this.denyUseCase = new TradeDenyUseCase(transactionRegistry, requestsRegistry, plugin.getLogger());
+        if (this.mailbox != null) {
+            this.mailbox.shutdown();
+            this.mailbox = null;
+        }
 
-        this.readyUseCase = new TradeReadyUseCase(transactionRegistry, requestsRegistry, plugin.getLogger());
-        this.endUseCase = new TradeEndUseCase(
-                MongoClients.create(mongoUri)
-                        .getDatabase(mongoDatabase)
-                        .getCollection(mongoCollection),
-                transactionRegistry,
-                requestsRegistry,
-                plugin.getLogger()
-        );
-        this.cancelUseCase = new TradeCancelUseCase(transactionRegistry, requestsRegistry, plugin.getLogger());
+        if (this.retention != null) {
+            this.retention.shutdown();
+            this.retention = null;
+        }
 
-        this.dragEventUseCase = new TradeDragEventUseCase(transactionRegistry, requestsRegistry, plugin.getLogger());
-        this.clickEventUseCase = new TradeClickEventUseCase(transactionRegistry, requestsRegistry, plugin.getLogger());
+        if (this.history != null) {
+            this.history.shutdown();
+            this.history = null;
+        }
+
+        if (this.logWriter != null) {
+            this.logWriter.shutdown(30_000L);
+            this.logWriter = null;
+        }
+
+        // The client is closed last, once the pending logs were written.
+        if (this.database == null) return;
+
+        this.database.close();
+        this.database = null;
     }
 
     /**
@@ -137,16 +477,13 @@ public final class TradeManager {
      * @param recipientName the name of the player who will receive the trade request
      */
     public void request(@NonNull Player sender, @NonNull String recipientName) {
-        try {
+        this.dispatch(sender, () -> {
             if (this.requestUseCase == null) {
                 throw new IllegalStateException("TradeRequestUseCase is not initialized.");
             }
 
             this.requestUseCase.submit(sender, recipientName);
-        } catch (Exception ex) {
-            // Handle the exception
-            this.handleException(sender, ex);
-        }
+        });
     }
 
     /**
@@ -155,28 +492,110 @@ public final class TradeManager {
      * @param recipientName the name of the player who sent the trade request
      */
     public void accept(@NonNull Player player, @NonNull String recipientName) {
-        try {
+        this.dispatch(player, () -> {
             if (this.acceptUseCase == null) {
                 throw new IllegalStateException("TradeAcceptUseCase is not initialized.");
             }
 
             this.acceptUseCase.submit(player, recipientName);
-        } catch (Exception ex) {
-            // Handle the exception
-            this.handleException(player, ex);
-        }
+        });
     }
 
     public void deny(@NonNull Player sender, @NonNull String recipientName) {
-        try {
+        this.dispatch(sender, () -> {
             if (this.denyUseCase == null) {
                 throw new IllegalStateException("TradeDenyUseCase is not initialized.");
             }
 
             this.denyUseCase.submit(sender, recipientName);
+        });
+    }
+
+    /**
+     * Delivers the items stored in the mailbox of a player.
+     * @param player the player who receives the items
+     * @param requested true if the player requested the delivery with the command, false if it's the delivery on join
+     */
+    public void mailbox(@NonNull Player player, boolean requested) {
+        // The mailbox is not available without Mongo, the join delivery is skipped silently.
+        if (this.mailboxUseCase == null) {
+            if (requested) player.sendMessage(MessageAssets.FEATURE_UNAVAILABLE.build());
+
+            return;
+        }
+
+        this.dispatch(player, () -> {
+            if (this.mailboxUseCase == null) {
+                throw new IllegalStateException("TradeMailboxUseCase is not initialized.");
+            }
+
+            this.mailboxUseCase.submit(player, requested);
+        });
+    }
+
+    /**
+     * Shows a page of the trades of a player.
+     * @param sender the staff member who runs the command
+     * @param playerName the name of the player whose trades are shown
+     * @param cursorToken the cursor of the page, or null for the first page
+     */
+    public void history(@NonNull Player sender, @NonNull String playerName, @Nullable String cursorToken) {
+        if (this.historyUseCase == null) {
+            sender.sendMessage(MessageAssets.FEATURE_UNAVAILABLE.build());
+            return;
+        }
+
+        this.dispatch(sender, () -> {
+            if (this.historyUseCase == null) {
+                throw new IllegalStateException("TradeHistoryUseCase is not initialized.");
+            }
+
+            this.historyUseCase.submitHistory(sender, playerName, cursorToken);
+        });
+    }
+
+    /**
+     * Shows a trade, with the items offered by each side.
+     * @param sender the staff member who runs the command
+     * @param transactionId the id of the trade
+     */
+    public void lookup(@NonNull Player sender, @NonNull String transactionId) {
+        if (this.historyUseCase == null) {
+            sender.sendMessage(MessageAssets.FEATURE_UNAVAILABLE.build());
+            return;
+        }
+
+        this.dispatch(sender, () -> {
+            if (this.historyUseCase == null) {
+                throw new IllegalStateException("TradeHistoryUseCase is not initialized.");
+            }
+
+            this.historyUseCase.submitLookup(sender, transactionId);
+        });
+    }
+
+    /**
+     * Runs an {@link ThreadAffinity.Kind#ASYNC} use case on the command worker.
+     * @param player the player who submitted the command
+     * @param task the task that submits the use case
+     */
+    private void dispatch(@NonNull Player player, @NonNull Runnable task) {
+        try {
+            if (this.commandExecutor == null) {
+                throw new IllegalStateException("The command worker is not initialized.");
+            }
+
+            this.commandExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception ex) {
+                    // Handle the exception
+                    this.handleException(player, ex);
+                }
+            });
         } catch (Exception ex) {
-            // Handle the exception
-            this.handleException(sender, ex);
+            // The worker is full or stopped, handle the exception
+            this.handleException(player, ex);
         }
     }
 
@@ -292,16 +711,19 @@ public final class TradeManager {
         }
     }
 
-    private void handleException(@NonNull Player player, @NonNull Exception ex) {
+    /**
+     * Reports a failure to the player and closes their trade GUI.
+     * Used by the tasks that a use case schedules on the thread of a player, which run outside of the use case call.
+     * @param player the player whose request failed
+     * @param ex the exception that was thrown
+     */
+    public void handleException(@NonNull Player player, @NonNull Exception ex) {
         // Log the exception if needed
         ex.printStackTrace(System.err);
 
         // Close the inventory if the transaction failed
-        // but the close must be called on the next tick
-        Bukkit.getScheduler().runTask(
-                JavaPlugin.getPlugin(Trade.class),
-                () -> player.closeInventory()
-        );
+        // but the close must be called on the next tick, on the thread that owns the player
+        if (this.scheduler != null) this.scheduler.runForEntity(player, player::closeInventory, null);
 
         // Notify the player that an error occurred
         player.sendMessage(Component.text("An error occurred while processing your request. Please try again later.", NamedTextColor.RED));
@@ -0,0 +1,230 @@
+package it.bitrule.trade.persistence;
+
+import lombok.NonNull;
+import org.bson.Document;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the trade logs in local files, for the servers that run without Mongo.
+ * The store is split in {@link SegmentFiles} like the {@link TradeLogJournal}, the records are appended
+ * to the active segment, which is sealed once it reaches the segment size.
+ * The small sealed segments, left by restarts and by the batches flushed at shutdown, are compacted:
+ * the consecutive ones are merged while they fit in a segment, and the documents replayed twice
+ * from the journal are kept once.
+ * This class is not thread-safe, it's owned by the log writer thread.
+ */
+public final class LocalTradeLogSink implements TradeLogSink {
+
+    private static final @NonNull String COMPACTION_FILE = "compaction.tmp";
+
+    /**
+     * The segment files of the store.
+     */
+    private final @NonNull SegmentFiles segmentFiles;
+    /**
+     * The max size of a segment, once it's reached the segment is sealed.
+     */
+    private final long maxSegmentBytes;
+    /**
+     * The amount of small sealed segments that starts a compaction.
+     */
+    private final int compactionThreshold;
+    private final @NonNull Logger logger;
+
+    /**
+     * The sealed segments, sorted from the oldest to the newest.
+     */
+    private final @NonNull LinkedList<Path> sealedSegments = new LinkedList<>();
+
+    private long nextSequence = 0L;
+
+    private @Nullable Path activeSegment = null;
+    private @Nullable FileChannel activeChannel = null;
+
+    public LocalTradeLogSink(@NonNull Path directory, long maxSegmentBytes, int compactionThreshold, @NonNull Logger logger) {
+        if (maxSegmentBytes <= 0 || compactionThreshold < 2) {
+            throw new IllegalArgumentException("The local store segment size must be a positive value and the compaction threshold at least 2.");
+        }
+
+        this.segmentFiles = new SegmentFiles(directory, "segment-", ".bson", logger, "Local Store");
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.compactionThreshold = compactionThreshold;
+        this.logger = logger;
+    }
+
+    /**
+     * Opens the store. The segments left by a previous run are sealed,
+     * and a compaction that was interrupted is discarded, its segments are still there.
+     * @throws IOException if the directory could not be read
+     */
+    public void open() throws IOException {
+        for (Path path : this.segmentFiles.list()) {
+            this.sealedSegments.add(path);
+            this.nextSequence = Math.max(this.nextSequence, this.segmentFiles.sequenceOf(path) + 1);
+        }
+
+        Files.deleteIfExists(this.segmentFiles.directory().resolve(COMPACTION_FILE));
+
+        this.compactIfNeeded();
+    }
+
+    @Override
+    public void write(@NonNull List<Document> documents) throws IOException {
+        ByteBuffer[] buffers = SegmentFiles.encode(documents);
+        long length = SegmentFiles.length(buffers);
+
+        FileChannel channel = this.activeChannel;
+        if (channel != null && channel.size() > 0 && channel.size() + length > this.maxSegmentBytes) {
+            this.rotate();
+            channel = null;
+        }
+
+        if (channel == null) channel = this.openActive();
+
+        SegmentFiles.write(channel, buffers);
+
+        channel.force(false);
+    }
+
+    /**
+     * Seals the active segment, and compacts the sealed segments if there are too many small ones.
+     * @throws IOException if the segment could not be closed
+     */
+    private void rotate() throws IOException {
+        if (this.activeChannel == null || this.activeSegment == null) return;
+
+        long size = this.activeChannel.size();
+        this.activeChannel.close();
+        this.activeChannel = null;
+
+        if (size > 0) {
+            this.sealedSegments.add(this.activeSegment);
+        } else {
+            Files.deleteIfExists(this.activeSegment);
+        }
+
+        this.activeSegment = null;
+
+        this.compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+        int smallSegments = 0;
+        for (Path segment : this.sealedSegments) {
+            if (sizeOf(segment) < this.maxSegmentBytes >> 1) smallSegments++;
+        }
+
+        if (smallSegments < this.compactionThreshold) return;
+
+        try {
+            this.compact();
+        } catch (IOException ex) {
+            this.logger.log(Level.WARNING, "[Local Store] Failed to compact the segments, they are kept as they are", ex);
+        }
+    }
+
+    /**
+     * Merges the consecutive sealed segments that fit together in a segment.
+     * Each merge is written into a temporary file that replaces the oldest segment of the group,
+     * the rest of the group is deleted after, so an interruption only leaves duplicated documents
+     * that are dropped by the next compaction.
+     * @throws IOException if a segment could not be read or written
+     */
+    private void compact() throws IOException {
+        List<List<Path>> groups = new ArrayList<>();
+        List<Path> group = new ArrayList<>();
+        long groupBytes = 0L;
+
+        for (Path segment : this.sealedSegments) {
+            long size = sizeOf(segment);
+            if (!group.isEmpty() && groupBytes + size > this.maxSegmentBytes) {
+                groups.add(group);
+                group = new ArrayList<>();
+                groupBytes = 0L;
+            }
+
+            group.add(segment);
+            groupBytes += size;
+        }
+
+        if (!group.isEmpty()) groups.add(group);
+
+        int merged = 0;
+        for (List<Path> segments : groups) {
+            if (segments.size() < 2) continue;
+
+            // The documents are keyed by their id, so the ones replayed twice are kept once.
+            Map<Object, Document> documents = new LinkedHashMap<>();
+            for (Path segment : segments) {
+                for (Document document : this.segmentFiles.read(segment)) {
+                    documents.putIfAbsent(document.get("_id"), document);
+                }
+            }
+
+            Path compaction = this.segmentFiles.directory().resolve(COMPACTION_FILE);
+            try (FileChannel channel = FileChannel.open(compaction, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                SegmentFiles.write(channel, SegmentFiles.encode(new ArrayList<>(documents.values())));
+
+                channel.force(false);
+            }
+
+            Path target = segments.get(0);
+            Files.move(compaction, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            for (int i = 1; i < segments.size(); i++) {
+                Files.deleteIfExists(segments.get(i));
+                this.sealedSegments.remove(segments.get(i));
+            }
+
+            merged += segments.size();
+        }
+
+        if (merged > 0) {
+            this.logger.info("[Local Store] Compacted " + merged + " segments, " + this.sealedSegments.size() + " sealed segments left.");
+        }
+    }
+
+    /**
+     * Seals the active segment, the writer thread calls it once the last batch was written.
+     */
+    @Override
+    public void close() {
+        try {
+            this.rotate();
+        } catch (IOException ex) {
+            this.logger.warning("[Local Store] Failed to close the active segment: " + ex.getMessage());
+        }
+    }
+
+    private @NonNull FileChannel openActive() throws IOException {
+        Path segment = this.segmentFiles.pathOf(this.nextSequence++);
+
+        this.activeChannel = SegmentFiles.openNew(segment);
+        this.activeSegment = segment;
+
+        return this.activeChannel;
+    }
+
+    private static long sizeOf(@NonNull Path segment) {
+        try {
+            return Files.size(segment);
+        } catch (IOException ex) {
+            return 0L;
+        }
+    }
+}
\ No newline at end of file
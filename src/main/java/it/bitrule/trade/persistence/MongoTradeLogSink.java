@@ -0,0 +1,37 @@
+package it.bitrule.trade.persistence;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * Stores the trade logs in a Mongo collection, using unordered batched inserts.
+ */
+@RequiredArgsConstructor
+public final class MongoTradeLogSink implements TradeLogSink {
+
+    /**
+     * Duplicate key error code, a document with the same id is already stored.
+     */
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
+    private final @NonNull MongoCollection<Document> logsCollection;
+
+    @Override
+    public void write(@NonNull List<Document> documents) {
+        try {
+            this.logsCollection.insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException ex) {
+            // A replayed batch may be partially stored, the duplicated documents are already written.
+            if (ex.getWriteErrors().stream().map(BulkWriteError::getCode).anyMatch(code -> code != DUPLICATE_KEY_ERROR)) {
+                throw ex;
+            }
+        }
+    }
+}
\ No newline at end of file
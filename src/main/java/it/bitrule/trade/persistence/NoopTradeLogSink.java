@@ -0,0 +1,16 @@
+package it.bitrule.trade.persistence;
+
+import lombok.NonNull;
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * Discards the trade logs, for the servers that don't need to keep them.
+ */
+public final class NoopTradeLogSink implements TradeLogSink {
+
+    @Override
+    public void write(@NonNull List<Document> documents) {
+    }
+}
\ No newline at end of file
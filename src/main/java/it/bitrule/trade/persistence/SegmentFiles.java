@@ -0,0 +1,174 @@
+package it.bitrule.trade.persistence;
+
+import lombok.NonNull;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * The segment files shared by the {@link TradeLogJournal} and the {@link LocalTradeLogSink}.
+ * A segment is named by its prefix, a zero padded sequence and its suffix, so the segments sort by age,
+ * and it holds raw BSON documents one after the other, which are already prefixed by their length.
+ */
+final class SegmentFiles {
+
+    private static final @NonNull DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    /**
+     * The directory where the segments are stored.
+     */
+    private final @NonNull Path directory;
+    private final @NonNull String prefix;
+    private final @NonNull String suffix;
+    private final @NonNull Logger logger;
+    /**
+     * The tag of the owner, used in the log messages.
+     */
+    private final @NonNull String tag;
+
+    SegmentFiles(@NonNull Path directory, @NonNull String prefix, @NonNull String suffix, @NonNull Logger logger, @NonNull String tag) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.logger = logger;
+        this.tag = tag;
+    }
+
+    /**
+     * @return the directory where the segments are stored
+     */
+    @NonNull Path directory() {
+        return this.directory;
+    }
+
+    /**
+     * Creates the directory and lists the segments in it.
+     * @return the segments, sorted from the oldest to the newest
+     * @throws IOException if the directory could not be read
+     */
+    @NonNull List<Path> list() throws IOException {
+        Files.createDirectories(this.directory);
+
+        try (Stream<Path> stream = Files.list(this.directory)) {
+            return stream.filter(path -> this.sequenceOf(path) >= 0)
+                    .sorted((a, b) -> Long.compare(this.sequenceOf(a), this.sequenceOf(b)))
+                    .toList();
+        }
+    }
+
+    /**
+     * @param sequence the sequence of a segment
+     * @return the path of the segment
+     */
+    @NonNull Path pathOf(long sequence) {
+        return this.directory.resolve(this.prefix + String.format("%016d", sequence) + this.suffix);
+    }
+
+    /**
+     * Creates a segment to append records to it, it must not exist.
+     * @param segment the path of the segment
+     * @return the channel of the segment
+     * @throws IOException if the segment could not be created
+     */
+    static @NonNull FileChannel openNew(@NonNull Path segment) throws IOException {
+        return FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @param path the path of a file
+     * @return the sequence of the segment, or -1 if the file is not a segment
+     */
+    long sequenceOf(@NonNull Path path) {
+        String fileName = path.getFileName().toString();
+        if (!fileName.startsWith(this.prefix) || !fileName.endsWith(this.suffix)) return -1L;
+
+        try {
+            return Long.parseLong(fileName.substring(this.prefix.length(), fileName.length() - this.suffix.length()));
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Reads all the records of a segment.
+     * A torn record at the end of the segment (the process died while writing it) is skipped.
+     * @param segment the segment to read
+     * @return the documents stored in the segment
+     * @throws IOException if the segment could not be read
+     */
+    @NonNull List<Document> read(@NonNull Path segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment)).order(ByteOrder.LITTLE_ENDIAN);
+
+        List<Document> documents = new ArrayList<>();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 5 || length > buffer.remaining()) {
+                this.logger.warning("[" + this.tag + "] Skipped a torn record of " + buffer.remaining() + " bytes at the end of " + segment.getFileName());
+                break;
+            }
+
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+
+            documents.add(new RawBsonDocument(bytes).decode(DOCUMENT_CODEC));
+        }
+
+        return documents;
+    }
+
+    /**
+     * Encodes the documents as records.
+     * @param documents the documents to encode
+     * @return the records, one buffer per document
+     */
+    static @NonNull ByteBuffer @NonNull [] encode(@NonNull List<Document> documents) {
+        ByteBuffer[] buffers = new ByteBuffer[documents.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new RawBsonDocument(documents.get(i), DOCUMENT_CODEC)
+                    .getByteBuffer()
+                    .asNIO();
+        }
+
+        return buffers;
+    }
+
+    /**
+     * @param buffers the encoded records
+     * @return the amount of bytes of the records
+     */
+    static long length(@NonNull ByteBuffer @NonNull [] buffers) {
+        long length = 0L;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes the records with gathering writes until all of them are written.
+     * @param channel the channel of the segment
+     * @param buffers the encoded records
+     * @throws IOException if the records could not be written
+     */
+    static void write(@NonNull FileChannel channel, @NonNull ByteBuffer @NonNull [] buffers) throws IOException {
+        long length = length(buffers);
+
+        long written = 0L;
+        while (written < length) {
+            written += channel.write(buffers);
+        }
+    }
+}
\ No newline at end of file
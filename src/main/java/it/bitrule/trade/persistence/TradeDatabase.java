@@ -0,0 +1,137 @@
+package it.bitrule.trade.persistence;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import lombok.NonNull;
+import org.bson.Document;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the Mongo client used by the trade logs, the mailbox and the history.
+ * Creating the client doesn't block, the driver connects on its own monitor threads,
+ * so the plugin enables even if Mongo is slow or unreachable. The connection is checked
+ * once on a separate thread, and the components that write retry or keep their data
+ * in the journal until it's reachable.
+ * The client is closed on {@link #close()}, so its threads and connections don't leak on reload.
+ */
+public final class TradeDatabase {
+
+    private final @NonNull MongoClient client;
+    private final @NonNull MongoCollection<Document> logsCollection;
+    private final @NonNull String databaseName;
+    private final @NonNull Logger logger;
+
+    public TradeDatabase(
+            @NonNull MongoClientSettings settings,
+            @NonNull String databaseName,
+            @NonNull String collectionName,
+            @NonNull Logger logger
+    ) {
+        this.client = MongoClients.create(settings);
+        this.logsCollection = this.client.getDatabase(databaseName).getCollection(collectionName);
+        this.databaseName = databaseName;
+        this.logger = logger;
+    }
+
+    /**
+     * @return the collection holding the trade logs
+     */
+    public @NonNull MongoCollection<Document> getLogsCollection() {
+        return this.logsCollection;
+    }
+
+    /**
+     * Checks the connection on a separate thread, so the main thread never waits for the server selection.
+     * The result is only logged, the database is used anyway and its failures are handled by each component.
+     */
+    public void connect() {
+        Thread thread = new Thread(() -> {
+            long startedAt = System.nanoTime();
+
+            try {
+                this.client.getDatabase(this.databaseName).runCommand(new Document("ping", 1));
+
+                this.logger.info("[Database] Connected to Mongo in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) + "ms");
+            } catch (Exception ex) {
+                this.logger.log(Level.WARNING, "[Database] Mongo is not reachable, the trade logs are kept in the journal until it is", ex);
+            }
+        }, "Trade Database Connector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes the client, its connections and its threads.
+     * The components using the database must be stopped first.
+     */
+    public void close() {
+        try {
+            this.client.close();
+        } catch (Exception ex) {
+            this.logger.log(Level.WARNING, "[Database] Failed to close the Mongo client", ex);
+        }
+    }
+
+    /**
+     * Parses a write concern.
+     * @param value the write concern, "majority" or the amount of members that must acknowledge a write
+     * @return the write concern
+     */
+    public static @NonNull WriteConcern writeConcern(@NonNull String value) {
+        if (value.equalsIgnoreCase("majority")) return WriteConcern.MAJORITY;
+
+        try {
+            int w = Integer.parseInt(value);
+            if (w >= 0) return new WriteConcern(w);
+        } catch (NumberFormatException ignored) {
+        }
+
+        throw new IllegalArgumentException("The Mongo write concern must be 'majority' or a positive number, got: " + value);
+    }
+
+    /**
+     * Returns the compressor of the given name.
+     * The zstd and snappy compressors need their library in the classpath,
+     * they are skipped if it's missing, so the connection falls back to the other compressors.
+     * @param name the name of the compressor: zstd, snappy or zlib
+     * @param logger the logger used to warn about the missing libraries
+     * @return the compressor, or null if its library is missing
+     */
+    public static @Nullable MongoCompressor compressor(@NonNull String name, @NonNull Logger logger) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "zlib":
+                return MongoCompressor.createZlibCompressor();
+            case "zstd":
+                if (isPresent("com.github.luben.zstd.Zstd")) return MongoCompressor.createZstdCompressor();
+                break;
+            case "snappy":
+                if (isPresent("org.xerial.snappy.Snappy")) return MongoCompressor.createSnappyCompressor();
+                break;
+            default:
+                throw new IllegalArgumentException("The Mongo compressor must be zstd, snappy or zlib, got: " + name);
+        }
+
+        logger.warning("[Database] The " + name + " compressor library is not in the classpath, it's skipped");
+
+        return null;
+    }
+
+    private static boolean isPresent(@NonNull String className) {
+        try {
+            Class.forName(className, false, TradeDatabase.class.getClassLoader());
+
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,295 @@
+package it.bitrule.trade.persistence;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import lombok.NonNull;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read side of the trade logs, used by the staff to look up the trades of a player.
+ * The history of a player is sorted by the end time of the trades, newest first, and it's
+ * paginated by keyset: each page continues after the end time and the id of the last trade of
+ * the previous page, so a page costs the same no matter how deep it is.
+ * The compound indexes of the sender and the receptor are created on start, so the history
+ * is served from them without scanning the collection.
+ * The queries run on a single reader thread, and the recent results are kept in a small
+ * LRU cache for a few seconds, so paging back and forth doesn't hit the database again.
+ */
+public final class TradeHistory {
+
+    /**
+     * The field holding the time the trade ended.
+     */
+    public static final @NonNull String ENDED_AT_FIELD = "ended_at";
+    /**
+     * The field set on the trades written before the end time was stored,
+     * their end time is the time they were backfilled, not the real one.
+     */
+    public static final @NonNull String BACKFILLED_FIELD = "ended_at_backfilled";
+
+    /**
+     * The id of the document marking that the end time was backfilled, so it's only done once.
+     */
+    private static final @NonNull String BACKFILL_MARKER_ID = "migration:ended_at";
+
+    private final @NonNull MongoCollection<Document> logsCollection;
+    private final @NonNull Logger logger;
+
+    /**
+     * The max amount of trades on a page.
+     */
+    private final int pageSize;
+    private final long cacheTtlMillis;
+
+    /**
+     * The thread that runs the queries, so they never run on the main thread.
+     */
+    private final @NonNull ExecutorService reader;
+    /**
+     * The recent results, keyed by the query. Only accessed by the reader thread.
+     */
+    private final @NonNull Map<String, CachedResult> cache;
+
+    public TradeHistory(
+            @NonNull MongoCollection<Document> logsCollection,
+            @NonNull Logger logger,
+            int pageSize,
+            int cacheSize,
+            long cacheTtlMillis,
+            int queueCapacity
+    ) {
+        if (pageSize <= 0 || cacheSize < 0 || cacheTtlMillis < 0) {
+            throw new IllegalArgumentException("The history settings must be positive values.");
+        }
+
+        this.logsCollection = logsCollection;
+        this.logger = logger;
+        this.pageSize = pageSize;
+        this.cacheTtlMillis = cacheTtlMillis;
+
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+
+        this.reader = new ThreadPoolExecutor(
+                1,
+                1,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> {
+                    Thread thread = new Thread(task, "Trade History Reader");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Creates the indexes of the history, on the reader thread.
+     * The trades without an end time, like the parts of a trade log and the mails, are not part of them.
+     */
+    public void start() {
+        this.reader.execute(() -> {
+            this.backfill();
+
+            IndexOptions indexOptions = new IndexOptions().partialFilterExpression(Filters.exists(ENDED_AT_FIELD));
+
+            try {
+                this.logsCollection.createIndex(Indexes.compoundIndex(
+                        Indexes.ascending("sender_id"),
+                        Indexes.descending(ENDED_AT_FIELD),
+                        Indexes.descending("_id")
+                ), indexOptions);
+                this.logsCollection.createIndex(Indexes.compoundIndex(
+                        Indexes.ascending("receptor_id"),
+                        Indexes.descending(ENDED_AT_FIELD),
+                        Indexes.descending("_id")
+                ), indexOptions);
+            } catch (Exception ex) {
+                this.logger.log(Level.WARNING, "[History] Failed to create the history indexes", ex);
+            }
+        });
+    }
+
+    /**
+     * Stamps the end time on the trades written before it was stored, only once per collection.
+     * Without it those trades are never shown in the history nor handled by the retention.
+     */
+    private void backfill() {
+        try {
+            if (this.logsCollection.find(Filters.eq("_id", BACKFILL_MARKER_ID)).first() != null) return;
+
+            long backfilled = this.logsCollection.updateMany(
+                    Filters.and(Filters.exists("sender_id"), Filters.exists(ENDED_AT_FIELD, false)),
+                    Updates.combine(Updates.set(ENDED_AT_FIELD, new Date()), Updates.set(BACKFILLED_FIELD, true))
+            ).getModifiedCount();
+
+            this.logsCollection.insertOne(new Document("_id", BACKFILL_MARKER_ID)
+                    .append("backfilled", backfilled)
+                    .append("created_at", new Date())
+            );
+
+            if (backfilled > 0) this.logger.info("[History] Stamped the end time of " + backfilled + " trades written before it was stored.");
+        } catch (Exception ex) {
+            this.logger.log(Level.WARNING, "[History] Failed to backfill the end time of the old trades, it's retried on the next start", ex);
+        }
+    }
+
+    /**
+     * Looks up a page of the trades of a player, on the reader thread.
+     * The documents of the page don't include the items log.
+     * @param playerId the mojang id of the player
+     * @param cursor the cursor of the last trade of the previous page, or null for the first page
+     * @param consumer the consumer of the page, called on the reader thread, null if the query failed
+     */
+    public void history(@NonNull UUID playerId, @Nullable Cursor cursor, @NonNull Consumer<Page> consumer) {
+        String key = "history:" + playerId + ":" + (cursor != null ? cursor.encode() : "");
+
+        this.reader.execute(() -> consumer.accept(this.cached(key, () -> {
+            Bson filter = Filters.and(
+                    Filters.or(Filters.eq("sender_id", playerId.toString()), Filters.eq("receptor_id", playerId.toString())),
+                    Filters.exists(ENDED_AT_FIELD)
+            );
+
+            if (cursor != null) {
+                filter = Filters.and(filter, Filters.or(
+                        Filters.lt(ENDED_AT_FIELD, cursor.endedAt()),
+                        Filters.and(Filters.eq(ENDED_AT_FIELD, cursor.endedAt()), Filters.lt("_id", cursor.id()))
+                ));
+            }
+
+            // One more trade than the page size is read to know if there is a next page.
+            List<Document> documents = new ArrayList<>(this.pageSize + 1);
+            this.logsCollection.find(filter)
+                    .projection(Projections.exclude("items_log", "offered_items"))
+                    .sort(Sorts.descending(ENDED_AT_FIELD, "_id"))
+                    .limit(this.pageSize + 1)
+                    .forEach(documents::add);
+
+            Cursor next = null;
+            if (documents.size() > this.pageSize) {
+                documents.remove(this.pageSize);
+
+                Document last = documents.get(this.pageSize - 1);
+                next = new Cursor(last.getDate(ENDED_AT_FIELD), last.getString("_id"));
+            }
+
+            return new Page(documents, next);
+        })));
+    }
+
+    /**
+     * Looks up a trade by its id, on the reader thread.
+     * @param transactionId the id of the trade
+     * @param consumer the consumer of the trade, called on the reader thread, the page is empty if it was not found, null if the query failed
+     */
+    public void lookup(@NonNull UUID transactionId, @NonNull Consumer<Page> consumer) {
+        String key = "lookup:" + transactionId;
+
+        this.reader.execute(() -> consumer.accept(this.cached(key, () -> {
+            Document document = this.logsCollection.find(Filters.eq("_id", transactionId.toString()))
+                    .projection(Projections.exclude("items_log"))
+                    .first();
+
+            return new Page(document != null ? List.of(document) : List.of(), null);
+        })));
+    }
+
+    private @Nullable Page cached(@NonNull String key, @NonNull Query query) {
+        long now = System.currentTimeMillis();
+
+        CachedResult cachedResult = this.cache.get(key);
+        if (cachedResult != null && cachedResult.expiresAt > now) return cachedResult.page;
+
+        Page page;
+        try {
+            page = query.run();
+        } catch (Exception ex) {
+            this.logger.log(Level.WARNING, "[History] Failed to run the query " + key, ex);
+            return null;
+        }
+
+        if (this.cacheTtlMillis > 0) this.cache.put(key, new CachedResult(page, now + this.cacheTtlMillis));
+
+        return page;
+    }
+
+    /**
+     * Stops the reader thread, the pending queries are discarded.
+     */
+    public void shutdown() {
+        this.reader.shutdownNow();
+    }
+
+    @FunctionalInterface
+    private interface Query {
+        @NonNull Page run();
+    }
+
+    private record CachedResult(@NonNull Page page, long expiresAt) {
+    }
+
+    /**
+     * A page of trades.
+     * @param documents the documents of the trades
+     * @param next the cursor of the next page, or null if it's the last page
+     */
+    public record Page(@NonNull List<Document> documents, @Nullable Cursor next) {
+    }
+
+    /**
+     * The position of a trade in the history, the pages continue after it.
+     * @param endedAt the time the trade ended
+     * @param id the id of the trade
+     */
+    public record Cursor(@NonNull Date endedAt, @NonNull String id) {
+
+        /**
+         * @return the cursor as a token that can be used in a command
+         */
+        public @NonNull String encode() {
+            return this.endedAt.getTime() + ":" + this.id;
+        }
+
+        /**
+         * @param token the token of a cursor
+         * @return the cursor, or null if the token is not valid
+         */
+        public static @Nullable Cursor decode(@NonNull String token) {
+            int separator = token.indexOf(':');
+            if (separator <= 0) return null;
+
+            try {
+                return new Cursor(new Date(Long.parseLong(token.substring(0, separator))), token.substring(separator + 1));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    }
+}
\ No newline at end of file
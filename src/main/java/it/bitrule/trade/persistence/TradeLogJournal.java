@@ -0,0 +1,220 @@
+package it.bitrule.trade.persistence;
+
+import lombok.NonNull;
+import org.bson.Document;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Append-only local journal for the trade logs.
+ * Every batch is written here before it's sent to the database, so the logs survive
+ * database outages and crashes. The journal is split in segments, the active segment
+ * receives the new records and the sealed segments are waiting to be replayed.
+ * The segments are {@link SegmentFiles}, holding raw BSON documents.
+ * This class is not thread-safe, it's owned by the log writer thread.
+ */
+public final class TradeLogJournal {
+
+    /**
+     * The segment files of the journal.
+     */
+    private final @NonNull SegmentFiles segmentFiles;
+    /**
+     * The max size of a segment, once it's reached the segment is sealed.
+     */
+    private final long maxSegmentBytes;
+    private final @NonNull Logger logger;
+
+    /**
+     * The sealed segments, sorted from the oldest to the newest.
+     */
+    private final @NonNull LinkedList<Path> sealedSegments = new LinkedList<>();
+
+    private long nextSequence = 0L;
+
+    private @Nullable Path activeSegment = null;
+    private @Nullable FileChannel activeChannel = null;
+    /**
+     * The amount of records written into the active segment.
+     */
+    private int activeRecords = 0;
+
+    public TradeLogJournal(@NonNull Path directory, long maxSegmentBytes, @NonNull Logger logger) {
+        if (maxSegmentBytes <= 0) {
+            throw new IllegalArgumentException("The journal segment size must be a positive value.");
+        }
+
+        this.segmentFiles = new SegmentFiles(directory, "segment-", ".log", logger, "Journal");
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.logger = logger;
+    }
+
+    /**
+     * Opens the journal. The segments left by a previous run are sealed,
+     * so they are replayed before the new records.
+     * @throws IOException if the directory could not be read
+     */
+    public void open() throws IOException {
+        for (Path path : this.segmentFiles.list()) {
+            try {
+                if (Files.size(path) == 0) {
+                    Files.delete(path);
+                } else {
+                    this.sealedSegments.add(path);
+                }
+            } catch (IOException ex) {
+                this.sealedSegments.add(path);
+            }
+
+            this.nextSequence = Math.max(this.nextSequence, this.segmentFiles.sequenceOf(path) + 1);
+        }
+
+        if (!this.sealedSegments.isEmpty()) {
+            this.logger.warning("[Journal] Found " + this.sealedSegments.size() + " segments pending to be replayed.");
+        }
+    }
+
+    /**
+     * Appends the documents to the active segment and forces them to the disk.
+     * @param documents the documents to append
+     * @throws IOException if the documents could not be written
+     */
+    public void append(@NonNull List<Document> documents) throws IOException {
+        ByteBuffer[] buffers = SegmentFiles.encode(documents);
+        long length = SegmentFiles.length(buffers);
+
+        FileChannel channel = this.activeChannel;
+        if (channel != null && this.activeRecords > 0 && channel.size() + length > this.maxSegmentBytes) {
+            this.rotate();
+            channel = null;
+        }
+
+        if (channel == null) channel = this.openActive();
+
+        SegmentFiles.write(channel, buffers);
+
+        channel.force(false);
+        this.activeRecords += documents.size();
+    }
+
+    /**
+     * Discards the records of the active segment.
+     * Called after all of them were confirmed by the database.
+     * @throws IOException if the segment could not be truncated
+     */
+    public void truncateActive() throws IOException {
+        if (this.activeChannel == null) return;
+
+        this.activeChannel.truncate(0L);
+        this.activeChannel.position(0L);
+        this.activeRecords = 0;
+    }
+
+    /**
+     * Seals the active segment, so its records are replayed later.
+     * @throws IOException if the segment could not be closed
+     */
+    public void rotate() throws IOException {
+        if (this.activeChannel == null || this.activeSegment == null) return;
+
+        this.activeChannel.close();
+        this.activeChannel = null;
+
+        if (this.activeRecords > 0) {
+            this.sealedSegments.add(this.activeSegment);
+        } else {
+            Files.deleteIfExists(this.activeSegment);
+        }
+
+        this.activeSegment = null;
+        this.activeRecords = 0;
+    }
+
+    /**
+     * @return the oldest sealed segment, or null if there is nothing to replay
+     */
+    public @Nullable Path oldestSealed() {
+        return this.sealedSegments.peekFirst();
+    }
+
+    /**
+     * Reads all the records of a segment.
+     * A torn record at the end of the segment (the process died while writing it) is skipped.
+     * @param segment the segment to read
+     * @return the documents stored in the segment
+     * @throws IOException if the segment could not be read
+     */
+    public @NonNull List<Document> read(@NonNull Path segment) throws IOException {
+        return this.segmentFiles.read(segment);
+    }
+
+    /**
+     * Deletes a sealed segment, called after all its records were confirmed by the database.
+     * @param segment the segment to delete
+     * @throws IOException if the segment could not be deleted
+     */
+    public void delete(@NonNull Path segment) throws IOException {
+        this.sealedSegments.remove(segment);
+
+        Files.deleteIfExists(segment);
+    }
+
+    /**
+     * Moves a sealed segment that can't be decoded out of the replay queue.
+     * The file is kept with another extension to be inspected by hand.
+     * @param segment the corrupted segment
+     */
+    public void quarantine(@NonNull Path segment) {
+        this.sealedSegments.remove(segment);
+
+        try {
+            Files.move(segment, segment.resolveSibling(segment.getFileName() + ".corrupt"));
+        } catch (IOException ex) {
+            this.logger.warning("[Journal] Failed to move the corrupted segment " + segment.getFileName() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the amount of records written into the active segment
+     */
+    public int activeRecords() {
+        return this.activeRecords;
+    }
+
+    /**
+     * @return the amount of sealed segments waiting to be replayed
+     */
+    public int sealedCount() {
+        return this.sealedSegments.size();
+    }
+
+    /**
+     * Closes the journal, the records that were not confirmed are kept
+     * and replayed on the next start.
+     */
+    public void close() {
+        try {
+            this.rotate();
+        } catch (IOException ex) {
+            this.logger.warning("[Journal] Failed to close the active segment: " + ex.getMessage());
+        }
+    }
+
+    private @NonNull FileChannel openActive() throws IOException {
+        Path segment = this.segmentFiles.pathOf(this.nextSequence++);
+
+        this.activeChannel = SegmentFiles.openNew(segment);
+        this.activeSegment = segment;
+        this.activeRecords = 0;
+
+        return this.activeChannel;
+    }
+}
\ No newline at end of file
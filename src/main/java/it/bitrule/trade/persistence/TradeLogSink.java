@@ -0,0 +1,29 @@
+package it.bitrule.trade.persistence;
+
+import lombok.NonNull;
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * Destination of the trade logs written by the {@link TradeLogWriter}.
+ * The writer batches and journals the logs before they reach the sink, so a sink only has to store a batch.
+ * A sink is only called from the writer thread, it doesn't need to be thread-safe.
+ */
+public interface TradeLogSink {
+
+    /**
+     * Stores a batch of documents.
+     * The batches replayed from the journal may hold documents that were already stored,
+     * they must be skipped without failing the batch.
+     * @param documents the documents to store
+     * @throws Exception if the batch could not be stored, it's kept in the journal and retried later
+     */
+    void write(@NonNull List<Document> documents) throws Exception;
+
+    /**
+     * Closes the sink, called by the writer thread once the last batch was written.
+     */
+    default void close() {
+    }
+}
\ No newline at end of file
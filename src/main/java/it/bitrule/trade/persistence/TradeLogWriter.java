@@ -0,0 +1,427 @@
+package it.bitrule.trade.persistence;
+
+import lombok.NonNull;
+import org.bson.Document;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind pipeline for the trade logs.
+ * Finished transactions are queued from the main thread and a single writer thread
+ * renders them into documents and ships them to the {@link TradeLogSink} in batches,
+ * so the main thread never pays for building the BSON documents.
+ * A batch is flushed when it reaches the batch size or when the flush interval
+ * since its first document has elapsed, whatever happens first.
+ * When the sink is remote, each batch is written into the {@link TradeLogJournal} before it's sent, so the
+ * logs are kept on disk while the sink is slow or unreachable.
+ */
+public final class TradeLogWriter implements Runnable {
+
+    /**
+     * Max time to wait before retrying the sink after a failure.
+     */
+    private static final long MAX_BACKOFF_MILLIS = 60_000L;
+
+    /**
+     * The destination of the logs.
+     */
+    private final @NonNull TradeLogSink sink;
+    /**
+     * The local journal where every batch is written before it's sent to the sink,
+     * or null if the sink is local and the batches are written straight to it.
+     */
+    private final @Nullable TradeLogJournal journal;
+    private final @NonNull Logger logger;
+
+    /**
+     * The queue holding the logs waiting to be rendered and written.
+     */
+    private final @NonNull BlockingQueue<Supplier<Document>> queue;
+    /**
+     * The max amount of documents to be written on a single insert.
+     */
+    private final int batchSize;
+    /**
+     * The max time a document can wait in the queue before its batch is flushed.
+     */
+    private final long flushIntervalMillis;
+    /**
+     * The max time the main thread waits for room in the queue when it is full.
+     */
+    private final long offerTimeoutMillis;
+
+    private final @NonNull Thread thread;
+    private volatile boolean running = false;
+
+    /**
+     * The time when the sink can be tried again after a failure.
+     * Only accessed by the writer thread.
+     */
+    private long retryAtMillis = 0L;
+    private int consecutiveFailures = 0;
+
+    private final @NonNull AtomicLong submitted = new AtomicLong();
+    private final @NonNull AtomicLong written = new AtomicLong();
+    private final @NonNull AtomicLong rejected = new AtomicLong();
+    private final @NonNull AtomicLong failedBatches = new AtomicLong();
+    private final @NonNull AtomicInteger highWaterMark = new AtomicInteger();
+
+    public TradeLogWriter(
+            @NonNull TradeLogSink sink,
+            @Nullable TradeLogJournal journal,
+            @NonNull Logger logger,
+            int queueCapacity,
+            int batchSize,
+            long flushIntervalMillis,
+            long offerTimeoutMillis
+    ) {
+        if (queueCapacity <= 0 || batchSize <= 0 || flushIntervalMillis <= 0 || offerTimeoutMillis < 0) {
+            throw new IllegalArgumentException("The log writer settings must be positive values.");
+        }
+
+        this.sink = sink;
+        this.journal = journal;
+        this.logger = logger;
+
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+
+        this.thread = new Thread(this, "Trade Log Writer");
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        if (this.running) {
+            throw new IllegalStateException("The log writer is already running.");
+        }
+
+        this.running = true;
+        this.thread.start();
+    }
+
+    /**
+     * Queues a log to be rendered and written.
+     * The renderer is called from the writer thread, so it must only read data
+     * that is not modified after the submit.
+     * If the queue is full, the caller waits at most the offer timeout for room,
+     * after that the log is rejected and its id is reported in the server log, so the
+     * audit record is never lost silently. It's not rendered there, the caller may be a tick thread.
+     * @param logId the id of the log, reported if it's rejected
+     * @param renderer the function that renders the document to be written
+     * @return true if the log was queued, false if it was rejected
+     */
+    public boolean submit(@NonNull String logId, @NonNull Supplier<Document> renderer) {
+        if (!this.running) {
+            throw new IllegalStateException("The log writer is not running.");
+        }
+
+        boolean queued;
+        try {
+            queued = this.queue.offer(renderer, this.offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+
+        if (!queued) {
+            long rejected = this.rejected.incrementAndGet();
+            this.logger.severe("[Log Writer] The queue is full (" + this.queue.size() + "/" + this.capacity() + "), rejected trade log " + logId + ", rejected so far: " + rejected);
+
+            return false;
+        }
+
+        this.submitted.incrementAndGet();
+
+        int depth = this.queue.size();
+        int previous = this.highWaterMark.getAndAccumulate(depth, Math::max);
+        if (depth > previous && depth * 4 >= this.capacity() * 3 && previous * 4 < this.capacity() * 3) {
+            this.logger.warning("[Log Writer] The queue is above 75% of its capacity (" + depth + "/" + this.capacity() + "), the sink is falling behind.");
+        }
+
+        return true;
+    }
+
+    @Override
+    public void run() {
+        List<Supplier<Document>> pending = new ArrayList<>(this.batchSize);
+        List<Document> batch = new ArrayList<>(this.batchSize);
+
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Supplier<Document> first = this.queue.poll(this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    // Nothing to write, use the idle time to replay the pending segments.
+                    this.replay();
+                    continue;
+                }
+
+                pending.add(first);
+
+                // Fill the batch until it is full or the flush interval of its first log is over.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.flushIntervalMillis);
+                while (pending.size() < this.batchSize) {
+                    if (this.queue.drainTo(pending, this.batchSize - pending.size()) > 0) continue;
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !this.running) break;
+
+                    Supplier<Document> next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+
+                    pending.add(next);
+                }
+            } catch (InterruptedException ex) {
+                // Only the shutdown interrupts the thread, keep draining the queue.
+                this.running = false;
+            }
+
+            for (Supplier<Document> renderer : pending) {
+                try {
+                    batch.add(renderer.get());
+                } catch (RuntimeException ex) {
+                    this.logger.log(Level.SEVERE, "[Log Writer] Failed to render a trade log, it was discarded", ex);
+                }
+            }
+
+            pending.clear();
+
+            if (batch.isEmpty()) continue;
+
+            this.flush(batch);
+            batch.clear();
+        }
+
+        if (this.journal != null) this.journal.close();
+        this.sink.close();
+    }
+
+    /**
+     * Writes the batch into the journal and then ships it to the sink.
+     * While the sink is failing, the batches are only written into the journal
+     * until the retry backoff is over, so the queue never waits on the network.
+     * @param batch the documents to be written
+     */
+    private void flush(@NonNull List<Document> batch) {
+        // A local sink is as durable as the journal, so the batch is written straight to it.
+        if (this.journal == null) {
+            if (!this.send(batch)) this.lost(batch);
+
+            return;
+        }
+
+        boolean journaled;
+        try {
+            this.journal.append(batch);
+            journaled = true;
+        } catch (IOException ex) {
+            this.logger.log(Level.SEVERE, "[Log Writer] Failed to write a batch of " + batch.size() + " trade logs into the journal", ex);
+            journaled = false;
+        }
+
+        if (journaled && System.currentTimeMillis() < this.retryAtMillis) return;
+
+        // Fast path, the active segment only holds this batch and there is nothing older to replay.
+        if (!journaled || (this.journal.oldestSealed() == null && this.journal.activeRecords() == batch.size())) {
+            if (this.send(batch)) {
+                if (journaled) this.truncateActive();
+            } else if (journaled) {
+                this.rotate();
+            } else {
+                this.lost(batch);
+            }
+
+            return;
+        }
+
+        // The journal holds records that were not confirmed yet, replay everything in order.
+        this.replay();
+    }
+
+    /**
+     * Ships the pending segments of the journal to the sink, from the oldest to the newest.
+     * The active segment is sealed first if it holds records that were not confirmed.
+     * Each segment is deleted once all its records were confirmed.
+     */
+    private void replay() {
+        if (this.journal == null) return;
+        if (System.currentTimeMillis() < this.retryAtMillis) return;
+        if (this.journal.activeRecords() > 0) this.rotate();
+
+        Path segment;
+        while ((segment = this.journal.oldestSealed()) != null) {
+            if (System.currentTimeMillis() < this.retryAtMillis) return;
+
+            List<Document> documents;
+            try {
+                documents = this.journal.read(segment);
+            } catch (IOException ex) {
+                this.logger.log(Level.SEVERE, "[Log Writer] Failed to read the journal segment " + segment.getFileName(), ex);
+                return;
+            } catch (RuntimeException ex) {
+                // The segment can't be decoded, move it away so it doesn't block the newer ones.
+                this.logger.log(Level.SEVERE, "[Log Writer] The journal segment " + segment.getFileName() + " is corrupted, it was moved aside", ex);
+                this.journal.quarantine(segment);
+                continue;
+            }
+
+            for (int from = 0; from < documents.size(); from += this.batchSize) {
+                if (!this.send(documents.subList(from, Math.min(from + this.batchSize, documents.size())))) return;
+            }
+
+            try {
+                this.journal.delete(segment);
+            } catch (IOException ex) {
+                this.logger.log(Level.SEVERE, "[Log Writer] Failed to delete the journal segment " + segment.getFileName(), ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stores the documents into the sink.
+     * @param documents the documents to store
+     * @return true if the documents were stored, false if the sink failed
+     */
+    private boolean send(@NonNull List<Document> documents) {
+        try {
+            this.sink.write(documents);
+        } catch (Exception ex) {
+            return this.failed(documents.size(), ex);
+        }
+
+        this.written.addAndGet(documents.size());
+        this.consecutiveFailures = 0;
+        this.retryAtMillis = 0L;
+
+        return true;
+    }
+
+    private boolean failed(int size, @NonNull Exception ex) {
+        this.failedBatches.incrementAndGet();
+        this.consecutiveFailures++;
+
+        long backoff = Math.min(this.flushIntervalMillis << Math.min(this.consecutiveFailures, 16), MAX_BACKOFF_MILLIS);
+        this.retryAtMillis = System.currentTimeMillis() + backoff;
+
+        if (this.journal != null) {
+            this.logger.log(Level.WARNING, "[Log Writer] Failed to write a batch of " + size + " trade logs, they are kept in the journal and retried in " + backoff + "ms", ex);
+        } else {
+            this.logger.log(Level.SEVERE, "[Log Writer] Failed to write a batch of " + size + " trade logs into the sink", ex);
+        }
+
+        return false;
+    }
+
+    private void truncateActive() {
+        if (this.journal == null) return;
+
+        try {
+            this.journal.truncateActive();
+        } catch (IOException ex) {
+            // The segment is replayed, the duplicated documents are skipped by the sink.
+            this.rotate();
+        }
+    }
+
+    private void rotate() {
+        if (this.journal == null) return;
+
+        try {
+            this.journal.rotate();
+        } catch (IOException ex) {
+            this.logger.log(Level.SEVERE, "[Log Writer] Failed to seal the active journal segment", ex);
+        }
+    }
+
+    private void lost(@NonNull List<Document> batch) {
+        for (Document document : batch) {
+            this.logger.severe("[Log Writer] Lost trade log, it could not be journaled nor written: " + document.toJson());
+        }
+    }
+
+    /**
+     * Stops the writer thread, waiting until every queued document is written.
+     * @param timeoutMillis the max time to wait for the queue to be drained
+     */
+    public void shutdown(long timeoutMillis) {
+        if (!this.running) return;
+
+        this.running = false;
+
+        try {
+            this.thread.join(timeoutMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (this.thread.isAlive()) {
+            this.logger.severe("[Log Writer] Timed out while draining the queue, " + this.queue.size() + " trade logs are still pending.");
+            this.thread.interrupt();
+        }
+
+        this.logger.info("[Log Writer] Stopped. Submitted: " + this.submitted.get()
+                + ", written: " + this.written.get()
+                + ", rejected: " + this.rejected.get()
+                + ", failed batches: " + this.failedBatches.get()
+                + ", pending journal segments: " + (this.journal != null ? this.journal.sealedCount() : 0)
+                + ", queue high water mark: " + this.highWaterMark.get() + "/" + this.capacity());
+    }
+
+    /**
+     * @return the amount of logs waiting to be written
+     */
+    public int queued() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return the max amount of logs the queue can hold
+     */
+    public int capacity() {
+        return this.queue.size() + this.queue.remainingCapacity();
+    }
+
+    /**
+     * @return the amount of logs accepted by the queue
+     */
+    public long submitted() {
+        return this.submitted.get();
+    }
+
+    /**
+     * @return the amount of documents written to the sink
+     */
+    public long written() {
+        return this.written.get();
+    }
+
+    /**
+     * @return the amount of logs rejected because the queue was full
+     */
+    public long rejected() {
+        return this.rejected.get();
+    }
+
+    /**
+     * @return the highest amount of logs the queue has held at once
+     */
+    public int highWaterMark() {
+        return this.highWaterMark.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,288 @@
+package it.bitrule.trade.persistence;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import lombok.NonNull;
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent mailbox of the trade items that didn't fit in the inventory of their owner.
+ * The items are stored as the bytes of {@code ItemStack#serializeAsBytes()} in the logs collection,
+ * each mail is a document holding the owner id, indexed by a sparse index so the trade logs are not part of it.
+ * The mails hold real items, so they have their own write path instead of the best-effort log writer:
+ * a writer thread inserts each mail and retries it with a backoff until it's stored,
+ * and the mails still pending on shutdown are dumped into the server log so they can be restored by hand.
+ * The mails are claimed by a single reader thread. A claimed mail is marked instead of deleted,
+ * so an insert retried after it was applied hits a duplicate key instead of storing the mail again,
+ * and the claimed mails are removed by a TTL index once no retry can reach them.
+ */
+public final class TradeMailbox {
+
+    /**
+     * The field holding the owner of a mail, only the mails have it.
+     */
+    private static final @NonNull String OWNER_FIELD = "mailbox_owner_id";
+    /**
+     * The field holding the time a mail was claimed, only the claimed mails have it.
+     */
+    private static final @NonNull String CLAIMED_FIELD = "claimed_at";
+    /**
+     * Time a claimed mail is kept before the TTL index removes it.
+     */
+    private static final long CLAIMED_TTL_SECONDS = TimeUnit.DAYS.toSeconds(7);
+    /**
+     * Max time to wait before retrying a mail after a failure.
+     */
+    private static final long MAX_BACKOFF_MILLIS = 60_000L;
+    /**
+     * Max time the shutdown waits for the pending mails to be stored.
+     */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000L;
+
+    private final @NonNull MongoCollection<Document> logsCollection;
+    private final @NonNull Logger logger;
+
+    /**
+     * The thread that claims the mails, so the lookups never run on the main thread.
+     */
+    private final @NonNull ExecutorService reader;
+    /**
+     * The thread that stores the mails, retrying them until they are stored.
+     */
+    private final @NonNull ScheduledThreadPoolExecutor writer;
+
+    /**
+     * The max amount of mails waiting to be stored.
+     */
+    private final int queueCapacity;
+    /**
+     * The mails waiting to be stored, keyed by their id.
+     */
+    private final @NonNull Map<String, Document> pendingMails = new ConcurrentHashMap<>();
+    private final @NonNull AtomicInteger pendingCount = new AtomicInteger();
+
+    public TradeMailbox(
+            @NonNull MongoCollection<Document> logsCollection,
+            @NonNull Logger logger,
+            int queueCapacity
+    ) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("The mailbox queue capacity must be a positive value.");
+        }
+
+        this.logsCollection = logsCollection;
+        this.logger = logger;
+        this.queueCapacity = queueCapacity;
+
+        this.reader = new ThreadPoolExecutor(
+                1,
+                1,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> {
+                    Thread thread = new Thread(task, "Trade Mailbox Reader");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+        );
+
+        this.writer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "Trade Mailbox Writer");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Creates the indexes of the mails, on the reader thread.
+     */
+    public void start() {
+        this.reader.execute(() -> {
+            try {
+                this.logsCollection.createIndex(Indexes.ascending(OWNER_FIELD), new IndexOptions().sparse(true));
+                this.logsCollection.createIndex(
+                        Indexes.ascending(CLAIMED_FIELD),
+                        new IndexOptions().expireAfter(CLAIMED_TTL_SECONDS, TimeUnit.SECONDS)
+                );
+            } catch (Exception ex) {
+                this.logger.log(Level.WARNING, "[Mailbox] Failed to create the mailbox indexes", ex);
+            }
+        });
+    }
+
+    /**
+     * Stores items in the mailbox of a player.
+     * The items must be serialized by the caller, on the thread that owns them.
+     * @param ownerId the mojang id of the player who owns the items
+     * @param serializedItems the serialized items
+     * @return true if the mail was queued, false if the queue is full and the caller must keep the items
+     */
+    public boolean post(@NonNull UUID ownerId, @NonNull List<byte[]> serializedItems) {
+        if (serializedItems.isEmpty()) return true;
+
+        if (this.pendingCount.incrementAndGet() > this.queueCapacity) {
+            this.pendingCount.decrementAndGet();
+            return false;
+        }
+
+        List<Binary> items = new ArrayList<>(serializedItems.size());
+        for (byte[] serializedItem : serializedItems) {
+            items.add(new Binary(serializedItem));
+        }
+
+        String mailId = UUID.randomUUID().toString();
+        Document mail = new Document("_id", mailId)
+                .append(OWNER_FIELD, ownerId.toString())
+                .append("items", items)
+                .append("created_at", new Date());
+
+        this.pendingMails.put(mailId, mail);
+
+        try {
+            this.writer.execute(() -> this.write(mail, 0));
+        } catch (RejectedExecutionException ex) {
+            this.pendingMails.remove(mailId);
+            this.pendingCount.decrementAndGet();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Inserts a mail, on the writer thread. If it fails, it's retried later with a backoff.
+     * @param mail the mail to insert
+     * @param attempt the amount of failed attempts
+     */
+    private void write(@NonNull Document mail, int attempt) {
+        try {
+            this.logsCollection.insertOne(mail);
+        } catch (MongoWriteException ex) {
+            // A previous attempt was applied even if it failed, the mail is already stored.
+            if (ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                this.retry(mail, attempt, ex);
+                return;
+            }
+        } catch (Exception ex) {
+            this.retry(mail, attempt, ex);
+            return;
+        }
+
+        this.pendingMails.remove(mail.getString("_id"));
+        this.pendingCount.decrementAndGet();
+    }
+
+    private void retry(@NonNull Document mail, int attempt, @NonNull Exception ex) {
+        long backoff = Math.min(1000L << Math.min(attempt, 16), MAX_BACKOFF_MILLIS);
+
+        this.logger.log(Level.WARNING, "[Mailbox] Failed to store the mail " + mail.getString("_id") + ", retrying in " + backoff + "ms", ex);
+
+        try {
+            this.writer.schedule(() -> this.write(mail, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+            // The mailbox is shutting down, the mail is dumped with the rest of the pending mails.
+        }
+    }
+
+    /**
+     * Claims the mails of a player, on the reader thread.
+     * The claimed mails are marked as claimed, so the consumer must give the items to the player
+     * or post them back if the player is not there anymore.
+     * @param ownerId the mojang id of the player who owns the items
+     * @param claimed the consumer of the serialized items, called on the reader thread, the list is empty if there was no mail
+     */
+    public void claim(@NonNull UUID ownerId, @NonNull Consumer<List<byte[]>> claimed) {
+        this.reader.execute(() -> {
+            List<byte[]> serializedItems = new ArrayList<>();
+
+            try {
+                List<Object> mailIds = new ArrayList<>();
+                this.logsCollection.find(Filters.and(Filters.eq(OWNER_FIELD, ownerId.toString()), Filters.exists(CLAIMED_FIELD, false)))
+                        .projection(Projections.include("_id"))
+                        .forEach(document -> mailIds.add(document.get("_id")));
+
+                // Each mail is claimed on its own, the one that marks it is the one that delivers it.
+                for (Object mailId : mailIds) {
+                    Document mail = this.logsCollection.findOneAndUpdate(
+                            Filters.and(Filters.eq("_id", mailId), Filters.exists(CLAIMED_FIELD, false)),
+                            Updates.set(CLAIMED_FIELD, new Date())
+                    );
+                    if (mail == null) continue;
+
+                    for (Binary item : mail.getList("items", Binary.class)) {
+                        serializedItems.add(item.getData());
+                    }
+                }
+            } catch (Exception ex) {
+                this.logger.log(Level.WARNING, "[Mailbox] Failed to claim the mailbox of " + ownerId, ex);
+            }
+
+            claimed.accept(serializedItems);
+        });
+    }
+
+    /**
+     * Stops the reader thread, the pending claims are discarded and retried on the next join.
+     * The writer thread is given some time to store the pending mails, the ones that are
+     * still pending after it are dumped into the server log.
+     */
+    public void shutdown() {
+        this.reader.shutdownNow();
+        this.writer.shutdown();
+
+        try {
+            if (!this.writer.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) this.writer.shutdownNow();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.writer.shutdownNow();
+        }
+
+        for (Document mail : this.pendingMails.values()) {
+            this.logger.severe("[Mailbox] The mail " + mail.getString("_id") + " could not be stored, restore it by hand: " + mail.toJson());
+        }
+    }
+
+    /**
+     * Dumps serialized items into the server log, used when they can't be stored anywhere.
+     * @param logger the logger to dump the items into
+     * @param ownerId the mojang id of the player who owns the items
+     * @param serializedItems the serialized items
+     * @param reason the reason the items could not be stored
+     */
+    public static void dump(@NonNull Logger logger, @NonNull UUID ownerId, @NonNull List<byte[]> serializedItems, @NonNull String reason) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        for (byte[] serializedItem : serializedItems) {
+            logger.severe("[Mailbox] " + reason + ", item of " + ownerId + " kept only here: " + encoder.encodeToString(serializedItem));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,350 @@
+package it.bitrule.trade.persistence;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import lombok.NonNull;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the size of the logs collection bounded, on a background thread.
+ * Each run does two passes over the ended trades:
+ * the trades older than the compaction age have their items log, and its parts, replaced by a summary
+ * holding the net amount of each item moved by each side, which is a fraction of the size;
+ * the trades older than the max age are deleted, with the parts left by the cancelled trades.
+ * The parts left by the cancelled trades have their own max age, so they are deleted even when the trades are kept forever.
+ * The deleted documents can be archived first into gzip compressed JSON lines files,
+ * each file is written and synced before the documents are deleted, so a trade is never lost.
+ * The mails are never touched. The trades written before the end time was stored get it
+ * backfilled by {@link TradeHistory#start()}, so they are handled as if they ended then.
+ */
+public final class TradeRetention implements Runnable {
+
+    private static final @NonNull JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder()
+            .outputMode(JsonMode.RELAXED)
+            .build();
+
+    private static final @NonNull DateTimeFormatter ARCHIVE_NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZoneOffset.UTC);
+
+    private final @NonNull MongoCollection<Document> logsCollection;
+    private final @NonNull Logger logger;
+
+    /**
+     * The age of the trades that are deleted, 0 means they are kept forever.
+     */
+    private final long maxAgeMillis;
+    /**
+     * The age of the trades whose items log is compacted, 0 means they are never compacted.
+     */
+    private final long compactAfterMillis;
+    /**
+     * The age of the parts whose trade never ended, 0 means they are kept until the max age.
+     */
+    private final long orphanPartsMaxAgeMillis;
+    /**
+     * The directory where the deleted documents are archived, or null if they are not archived.
+     */
+    private final @Nullable Path archiveDirectory;
+    /**
+     * The max amount of documents read at once, and the max amount of documents of an archive file.
+     */
+    private final int batchSize;
+    private final int archiveSegmentDocuments;
+
+    private final @NonNull ScheduledExecutorService executor;
+
+    public TradeRetention(
+            @NonNull MongoCollection<Document> logsCollection,
+            @NonNull Logger logger,
+            long maxAgeMillis,
+            long compactAfterMillis,
+            long orphanPartsMaxAgeMillis,
+            @Nullable Path archiveDirectory,
+            int batchSize,
+            int archiveSegmentDocuments
+    ) {
+        if (maxAgeMillis < 0 || compactAfterMillis < 0 || orphanPartsMaxAgeMillis < 0 || batchSize <= 0 || archiveSegmentDocuments <= 0) {
+            throw new IllegalArgumentException("The retention settings must be positive values.");
+        }
+
+        this.logsCollection = logsCollection;
+        this.logger = logger;
+        this.maxAgeMillis = maxAgeMillis;
+        this.compactAfterMillis = compactAfterMillis;
+        this.orphanPartsMaxAgeMillis = orphanPartsMaxAgeMillis;
+        this.archiveDirectory = archiveDirectory;
+        this.batchSize = batchSize;
+        this.archiveSegmentDocuments = archiveSegmentDocuments;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "Trade Retention");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    /**
+     * Creates the indexes used by the retention and schedules the runs.
+     * @param intervalMillis the time between two runs
+     */
+    public void start(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("The retention interval must be a positive value.");
+        }
+
+        this.executor.execute(() -> {
+            try {
+                this.logsCollection.createIndex(
+                        Indexes.ascending(TradeHistory.ENDED_AT_FIELD),
+                        new IndexOptions().partialFilterExpression(Filters.exists(TradeHistory.ENDED_AT_FIELD))
+                );
+                this.logsCollection.createIndex(
+                        Indexes.compoundIndex(Indexes.ascending("transaction_id"), Indexes.ascending("created_at")),
+                        new IndexOptions().partialFilterExpression(Filters.exists("transaction_id"))
+                );
+            } catch (Exception ex) {
+                this.logger.log(Level.WARNING, "[Retention] Failed to create the retention indexes", ex);
+            }
+        });
+
+        this.executor.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+
+        try {
+            if (this.compactAfterMillis > 0) this.compact(new Date(now - this.compactAfterMillis));
+            if (this.orphanPartsMaxAgeMillis > 0) this.expireOrphanParts(new Date(now - this.orphanPartsMaxAgeMillis));
+            if (this.maxAgeMillis > 0) this.expire(new Date(now - this.maxAgeMillis));
+        } catch (Exception ex) {
+            this.logger.log(Level.WARNING, "[Retention] The retention run failed, it's retried on the next run", ex);
+        }
+    }
+
+    /**
+     * Replaces the items log of the trades that ended before the cutoff by their summary.
+     * @param cutoff the end time of the newest trade to compact
+     */
+    private void compact(@NonNull Date cutoff) {
+        Bson filter = Filters.and(Filters.lt(TradeHistory.ENDED_AT_FIELD, cutoff), Filters.exists("items_log"));
+
+        int compacted = 0;
+        List<Document> trades = new ArrayList<>(this.batchSize);
+        do {
+            trades.clear();
+            this.logsCollection.find(filter)
+                    .projection(Projections.include("sender_id", "items_log"))
+                    .limit(this.batchSize)
+                    .forEach(trades::add);
+
+            for (Document trade : trades) {
+                String transactionId = trade.getString("_id");
+
+                List<Document> changes = new ArrayList<>(trade.getList("items_log", Document.class, List.of()));
+                this.logsCollection.find(Filters.eq("transaction_id", transactionId))
+                        .projection(Projections.include("items_log"))
+                        .forEach(part -> changes.addAll(part.getList("items_log", Document.class, List.of())));
+
+                // The summary is written first, if the run stops here the parts are deleted by age later.
+                this.logsCollection.updateOne(Filters.eq("_id", transactionId), Updates.combine(
+                        Updates.set("summary", summarize(trade.getString("sender_id"), changes)),
+                        Updates.set("summary_changes", changes.size()),
+                        Updates.set("compacted_at", new Date()),
+                        Updates.unset("items_log")
+                ));
+                this.logsCollection.deleteMany(Filters.eq("transaction_id", transactionId));
+
+                compacted++;
+            }
+        } while (trades.size() == this.batchSize);
+
+        if (compacted > 0) this.logger.info("[Retention] Compacted the items log of " + compacted + " trades.");
+    }
+
+    /**
+     * Deletes the parts created before the cutoff whose trade never ended, like the parts of a cancelled trade.
+     * The parts of the ended trades are kept, they belong to the items log of the trade.
+     * @param cutoff the creation time of the newest part to delete
+     */
+    private void expireOrphanParts(@NonNull Date cutoff) {
+        Bson filter = Filters.and(Filters.exists("transaction_id"), Filters.lt("created_at", cutoff));
+
+        long deleted = 0L;
+        Object lastId = null;
+        List<Document> parts = new ArrayList<>(this.batchSize);
+        do {
+            parts.clear();
+            this.logsCollection.find(lastId == null ? filter : Filters.and(filter, Filters.gt("_id", lastId)))
+                    .projection(Projections.include("transaction_id"))
+                    .sort(Indexes.ascending("_id"))
+                    .limit(this.batchSize)
+                    .forEach(parts::add);
+
+            if (parts.isEmpty()) break;
+
+            lastId = parts.get(parts.size() - 1).get("_id");
+
+            Set<String> transactionIds = new HashSet<>();
+            for (Document part : parts) {
+                transactionIds.add(part.getString("transaction_id"));
+            }
+
+            this.logsCollection.find(Filters.in("_id", transactionIds))
+                    .projection(Projections.include("_id"))
+                    .forEach(trade -> transactionIds.remove(trade.getString("_id")));
+
+            if (transactionIds.isEmpty()) continue;
+
+            deleted += this.logsCollection.deleteMany(Filters.and(
+                    Filters.in("transaction_id", transactionIds),
+                    Filters.lt("created_at", cutoff)
+            )).getDeletedCount();
+        } while (parts.size() == this.batchSize);
+
+        if (deleted > 0) this.logger.info("[Retention] Deleted " + deleted + " parts of trades that never ended.");
+    }
+
+    /**
+     * Deletes the trades that ended before the cutoff, and the parts created before it.
+     * @param cutoff the end time of the newest trade to delete
+     * @throws IOException if the documents could not be archived, nothing is deleted then
+     */
+    private void expire(@NonNull Date cutoff) throws IOException {
+        Bson filter = Filters.or(
+                Filters.lt(TradeHistory.ENDED_AT_FIELD, cutoff),
+                Filters.and(Filters.exists("transaction_id"), Filters.lt("created_at", cutoff))
+        );
+
+        if (this.archiveDirectory == null) {
+            long deleted = this.logsCollection.deleteMany(filter).getDeletedCount();
+            if (deleted > 0) this.logger.info("[Retention] Deleted " + deleted + " expired trade logs.");
+
+            return;
+        }
+
+        Files.createDirectories(this.archiveDirectory);
+
+        long archived = 0L;
+        int segment = 0;
+        List<Document> documents = new ArrayList<>(this.batchSize);
+        while (true) {
+            Path target = this.archiveDirectory.resolve("trades-" + ARCHIVE_NAME_FORMATTER.format(new Date().toInstant()) + "-" + segment++ + ".jsonl.gz");
+            Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+
+            List<Object> ids = new ArrayList<>(this.archiveSegmentDocuments);
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(temporary)), StandardCharsets.UTF_8))) {
+                // The documents are read in batches after the last archived id, so the file holds a bounded amount of them.
+                Object lastId = null;
+                while (ids.size() < this.archiveSegmentDocuments) {
+                    documents.clear();
+                    this.logsCollection.find(lastId == null ? filter : Filters.and(filter, Filters.gt("_id", lastId)))
+                            .sort(Indexes.ascending("_id"))
+                            .limit(Math.min(this.batchSize, this.archiveSegmentDocuments - ids.size()))
+                            .forEach(documents::add);
+
+                    if (documents.isEmpty()) break;
+
+                    for (Document document : documents) {
+                        writer.write(document.toJson(JSON_SETTINGS));
+                        writer.newLine();
+
+                        ids.add(document.get("_id"));
+                    }
+
+                    lastId = ids.get(ids.size() - 1);
+                }
+            }
+
+            if (ids.isEmpty()) {
+                Files.deleteIfExists(temporary);
+                break;
+            }
+
+            // The file is synced and renamed before the documents are deleted.
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+
+            for (int from = 0; from < ids.size(); from += this.batchSize) {
+                this.logsCollection.deleteMany(Filters.in("_id", ids.subList(from, Math.min(from + this.batchSize, ids.size()))));
+            }
+
+            archived += ids.size();
+
+            if (ids.size() < this.archiveSegmentDocuments) break;
+        }
+
+        if (archived > 0) this.logger.info("[Retention] Archived and deleted " + archived + " expired trade logs.");
+    }
+
+    /**
+     * Sums the net amount of each item moved by each side of a trade.
+     * A positive amount is an item the side offered, the items taken back cancel out.
+     * @param senderId the mojang id of the sender
+     * @param changes the changes of the items log
+     * @return the summary, holding the amounts of the sender and the receptor keyed by the item type
+     */
+    static @NonNull Document summarize(@Nullable String senderId, @NonNull List<Document> changes) {
+        Document sender = new Document();
+        Document receptor = new Document();
+
+        for (Document change : changes) {
+            Document side = change.getString("actor_id").equals(senderId) ? sender : receptor;
+
+            String oldType = change.getString("old_type");
+            if (oldType != null) side.put(oldType, side.getInteger(oldType, 0) - change.getInteger("old_amount", 0));
+
+            String newType = change.getString("new_type");
+            if (newType != null) side.put(newType, side.getInteger(newType, 0) + change.getInteger("new_amount", 0));
+        }
+
+        sender.values().removeIf(amount -> (Integer) amount == 0);
+        receptor.values().removeIf(amount -> (Integer) amount == 0);
+
+        return new Document("sender", sender).append("receptor", receptor);
+    }
+
+    /**
+     * Stops the retention, a run that is in progress is interrupted between its queries.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+}
\ No newline at end of file
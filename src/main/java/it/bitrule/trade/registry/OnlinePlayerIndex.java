@@ -0,0 +1,44 @@
+package it.bitrule.trade.registry;
+
+import lombok.NonNull;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the online players by their lower case name.
+ * It's updated from the main thread when a player joins or quits, and it can be read from
+ * any thread, so the commands can look up players without calling the Bukkit API off the main thread.
+ */
+public final class OnlinePlayerIndex {
+
+    private final @NonNull Map<String, Player> playersByName = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a player to the index.
+     * @param player the player who joined
+     */
+    public void add(@NonNull Player player) {
+        this.playersByName.put(player.getName().toLowerCase(Locale.ROOT), player);
+    }
+
+    /**
+     * Removes a player from the index, only if it's still the same player instance.
+     * @param player the player who quit
+     */
+    public void remove(@NonNull Player player) {
+        this.playersByName.remove(player.getName().toLowerCase(Locale.ROOT), player);
+    }
+
+    /**
+     * Finds an online player by their exact name, ignoring the case.
+     * @param name the name of the player
+     * @return the player, or null if they are not online
+     */
+    public @Nullable Player findExact(@NonNull String name) {
+        return this.playersByName.get(name.toLowerCase(Locale.ROOT));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,413 @@
+package it.bitrule.trade.registry;
+
+import it.bitrule.trade.component.Transaction;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The trade state of every player, kept in a single open addressing table keyed by the player id.
+ * Each player has one session holding their current transaction, the requests they sent
+ * and the requests they received, so any lookup is a single probe sequence over the table.
+ * The transaction lookup is lock-free and allocates nothing, it's the one used by the click path.
+ * The writes and the request lookups are done holding the lock of the index.
+ * The sessions without any state are removed, leaving a tombstone that is cleaned on the next rehash.
+ */
+public final class PlayerSessionIndex {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int INITIAL_REQUESTS = 4;
+
+    /**
+     * Marks a slot whose session was removed, the probe sequences keep going through it.
+     */
+    private static final @NonNull Object TOMBSTONE = new Object();
+
+    /**
+     * The table of sessions, its length is always a power of two.
+     * It's replaced by a new table on each rehash.
+     */
+    private volatile @NonNull AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /**
+     * The amount of sessions stored in the table.
+     */
+    private int size = 0;
+    /**
+     * The amount of tombstones left in the table.
+     */
+    private int tombstones = 0;
+    /**
+     * The stamp given to the next request, it tells apart a request from an older one between the same players.
+     */
+    private long nextStamp = 1L;
+
+    /**
+     * Finds the transaction of a player without locking nor allocating.
+     * @param playerId the mojang id of the player
+     * @return the transaction of the player, or null if they are not trading
+     */
+    public @Nullable Transaction transaction(@NonNull UUID playerId) {
+        AtomicReferenceArray<Object> table = this.table;
+        int mask = table.length() - 1;
+
+        for (int index = hash(playerId) & mask; ; index = (index + 1) & mask) {
+            Object entry = table.get(index);
+            if (entry == null) return null;
+            if (entry == TOMBSTONE) continue;
+
+            PlayerSession session = (PlayerSession) entry;
+            if (session.playerId.equals(playerId)) return session.transaction;
+        }
+    }
+
+    /**
+     * Binds a transaction to a player.
+     * @param playerId the mojang id of the player
+     * @param transaction the transaction of the player
+     */
+    public synchronized void bindTransaction(@NonNull UUID playerId, @NonNull Transaction transaction) {
+        this.session(playerId).transaction = transaction;
+    }
+
+    /**
+     * Unbinds a transaction from a player, only if it's still their current transaction.
+     * @param playerId the mojang id of the player
+     * @param transaction the transaction to unbind
+     */
+    public synchronized void unbindTransaction(@NonNull UUID playerId, @NonNull Transaction transaction) {
+        PlayerSession session = this.find(playerId);
+        if (session == null || session.transaction != transaction) return;
+
+        session.transaction = null;
+        this.release(session);
+    }
+
+    /**
+     * Checks if there is a pending request from the sender to the recipient.
+     * @param sender the mojang id of the player who sent the request
+     * @param recipient the mojang id of the player who received the request
+     * @return true if the request exists, false otherwise
+     */
+    public synchronized boolean hasRequest(@NonNull UUID sender, @NonNull UUID recipient) {
+        PlayerSession session = this.find(sender);
+
+        return session != null && indexOf(session.outgoing, session.outgoingCount, recipient) >= 0;
+    }
+
+    /**
+     * Adds a pending request from the sender to the recipient.
+     * @param sender the mojang id of the player who sent the request
+     * @param recipient the mojang id of the player who received the request
+     * @return the stamp of the request, or 0 if it already existed
+     */
+    public synchronized long addRequest(@NonNull UUID sender, @NonNull UUID recipient) {
+        PlayerSession senderSession = this.session(sender);
+        if (indexOf(senderSession.outgoing, senderSession.outgoingCount, recipient) >= 0) return 0L;
+
+        PlayerSession recipientSession = this.session(recipient);
+
+        long stamp = this.nextStamp++;
+
+        senderSession.outgoingStamps = append(senderSession.outgoingStamps, senderSession.outgoingCount, stamp);
+        senderSession.outgoing = append(senderSession.outgoing, senderSession.outgoingCount++, recipient);
+        recipientSession.incoming = append(recipientSession.incoming, recipientSession.incomingCount++, sender);
+
+        return stamp;
+    }
+
+    /**
+     * Removes a pending request from the sender to the recipient.
+     * @param sender the mojang id of the player who sent the request
+     * @param recipient the mojang id of the player who received the request
+     * @return true if the request was removed, false if it didn't exist
+     */
+    public synchronized boolean removeRequest(@NonNull UUID sender, @NonNull UUID recipient) {
+        return this.removeRequest(sender, recipient, 0L);
+    }
+
+    /**
+     * Removes a pending request from the sender to the recipient, only if it's the request with the given stamp.
+     * A request that was removed and sent again has a new stamp, so it's not removed.
+     * @param sender the mojang id of the player who sent the request
+     * @param recipient the mojang id of the player who received the request
+     * @param stamp the stamp of the request
+     * @return true if the request was removed, false if it didn't exist or it has another stamp
+     */
+    public synchronized boolean expireRequest(@NonNull UUID sender, @NonNull UUID recipient, long stamp) {
+        return stamp != 0L && this.removeRequest(sender, recipient, stamp);
+    }
+
+    private boolean removeRequest(@NonNull UUID sender, @NonNull UUID recipient, long stamp) {
+        PlayerSession senderSession = this.find(sender);
+        PlayerSession recipientSession = this.find(recipient);
+        if (senderSession == null || recipientSession == null) return false;
+
+        int outgoingIndex = indexOf(senderSession.outgoing, senderSession.outgoingCount, recipient);
+        if (outgoingIndex < 0) return false;
+        if (stamp != 0L && senderSession.outgoingStamps[outgoingIndex] != stamp) return false;
+
+        senderSession.outgoingStamps[outgoingIndex] = senderSession.outgoingStamps[senderSession.outgoingCount - 1];
+        senderSession.outgoingCount = remove(senderSession.outgoing, senderSession.outgoingCount, outgoingIndex);
+
+        int incomingIndex = indexOf(recipientSession.incoming, recipientSession.incomingCount, sender);
+        if (incomingIndex >= 0) {
+            recipientSession.incomingCount = remove(recipientSession.incoming, recipientSession.incomingCount, incomingIndex);
+        }
+
+        this.release(senderSession);
+        this.release(recipientSession);
+
+        return true;
+    }
+
+    /**
+     * Removes all the pending requests sent and received by a player.
+     * @param playerId the mojang id of the player
+     * @return the amount of requests that were removed
+     */
+    public synchronized int clearRequests(@NonNull UUID playerId) {
+        PlayerSession session = this.find(playerId);
+        if (session == null) return 0;
+
+        int removed = session.outgoingCount + session.incomingCount;
+
+        for (int i = 0; i < session.outgoingCount; i++) {
+            PlayerSession recipientSession = this.find(session.outgoing[i]);
+            if (recipientSession == null) continue;
+
+            int index = indexOf(recipientSession.incoming, recipientSession.incomingCount, playerId);
+            if (index >= 0) recipientSession.incomingCount = remove(recipientSession.incoming, recipientSession.incomingCount, index);
+
+            this.release(recipientSession);
+        }
+
+        for (int i = 0; i < session.incomingCount; i++) {
+            PlayerSession senderSession = this.find(session.incoming[i]);
+            if (senderSession == null) continue;
+
+            int index = indexOf(senderSession.outgoing, senderSession.outgoingCount, playerId);
+            if (index >= 0) {
+                senderSession.outgoingStamps[index] = senderSession.outgoingStamps[senderSession.outgoingCount - 1];
+                senderSession.outgoingCount = remove(senderSession.outgoing, senderSession.outgoingCount, index);
+            }
+
+            this.release(senderSession);
+        }
+
+        if (session.outgoing != null) Arrays.fill(session.outgoing, 0, session.outgoingCount, null);
+        if (session.incoming != null) Arrays.fill(session.incoming, 0, session.incomingCount, null);
+
+        session.outgoingCount = 0;
+        session.incomingCount = 0;
+
+        this.release(session);
+
+        return removed;
+    }
+
+    /**
+     * @param playerId the mojang id of the player
+     * @return the amount of pending requests sent by the player
+     */
+    public synchronized int outgoingCount(@NonNull UUID playerId) {
+        PlayerSession session = this.find(playerId);
+
+        return session != null ? session.outgoingCount : 0;
+    }
+
+    /**
+     * @param playerId the mojang id of the player
+     * @return the amount of pending requests received by the player
+     */
+    public synchronized int incomingCount(@NonNull UUID playerId) {
+        PlayerSession session = this.find(playerId);
+
+        return session != null ? session.incomingCount : 0;
+    }
+
+    /**
+     * @return the amount of players with any trade state
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    private @Nullable PlayerSession find(@NonNull UUID playerId) {
+        AtomicReferenceArray<Object> table = this.table;
+        int mask = table.length() - 1;
+
+        for (int index = hash(playerId) & mask; ; index = (index + 1) & mask) {
+            Object entry = table.get(index);
+            if (entry == null) return null;
+            if (entry == TOMBSTONE) continue;
+
+            PlayerSession session = (PlayerSession) entry;
+            if (session.playerId.equals(playerId)) return session;
+        }
+    }
+
+    /**
+     * Finds the session of a player, creating it if they didn't have one.
+     * Must be called holding the lock of the index.
+     */
+    private @NonNull PlayerSession session(@NonNull UUID playerId) {
+        PlayerSession session = this.find(playerId);
+        if (session != null) return session;
+
+        if ((this.size + this.tombstones + 1) * 2 > this.table.length()) this.rehash();
+
+        AtomicReferenceArray<Object> table = this.table;
+        int mask = table.length() - 1;
+
+        int index = hash(playerId) & mask;
+        Object entry;
+        while ((entry = table.get(index)) != null && entry != TOMBSTONE) {
+            index = (index + 1) & mask;
+        }
+
+        if (entry == TOMBSTONE) this.tombstones--;
+
+        session = new PlayerSession(playerId);
+        table.set(index, session);
+        this.size++;
+
+        return session;
+    }
+
+    /**
+     * Removes the session from the table if it doesn't hold any state.
+     * Must be called holding the lock of the index.
+     */
+    private void release(@NonNull PlayerSession session) {
+        if (session.transaction != null || session.outgoingCount > 0 || session.incomingCount > 0) return;
+
+        AtomicReferenceArray<Object> table = this.table;
+        int mask = table.length() - 1;
+
+        for (int index = hash(session.playerId) & mask; ; index = (index + 1) & mask) {
+            Object entry = table.get(index);
+            if (entry == null) return;
+            if (entry != session) continue;
+
+            table.set(index, TOMBSTONE);
+            this.size--;
+            this.tombstones++;
+
+            return;
+        }
+    }
+
+    /**
+     * Moves the sessions into a new table without tombstones, growing it if needed.
+     * The new table is only published once it's filled, so the readers never see it half built.
+     */
+    private void rehash() {
+        AtomicReferenceArray<Object> oldTable = this.table;
+
+        int capacity = oldTable.length();
+        if ((this.size + 1) * 4 > capacity) capacity <<= 1;
+
+        AtomicReferenceArray<Object> newTable = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+
+        for (int i = 0; i < oldTable.length(); i++) {
+            Object entry = oldTable.get(i);
+            if (entry == null || entry == TOMBSTONE) continue;
+
+            int index = hash(((PlayerSession) entry).playerId) & mask;
+            while (newTable.get(index) != null) {
+                index = (index + 1) & mask;
+            }
+
+            newTable.set(index, entry);
+        }
+
+        this.table = newTable;
+        this.tombstones = 0;
+    }
+
+    private static int hash(@NonNull UUID playerId) {
+        long bits = playerId.getMostSignificantBits() ^ playerId.getLeastSignificantBits();
+        int hash = (int) (bits ^ (bits >>> 32)) * 0x9E3779B9;
+
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int indexOf(@Nullable UUID @Nullable [] array, int count, @NonNull UUID value) {
+        if (array == null) return -1;
+
+        for (int i = 0; i < count; i++) {
+            if (value.equals(array[i])) return i;
+        }
+
+        return -1;
+    }
+
+    private static @Nullable UUID @NonNull [] append(@Nullable UUID @Nullable [] array, int count, @NonNull UUID value) {
+        if (array == null) {
+            array = new UUID[INITIAL_REQUESTS];
+        } else if (count == array.length) {
+            array = Arrays.copyOf(array, count << 1);
+        }
+
+        array[count] = value;
+
+        return array;
+    }
+
+    private static long @NonNull [] append(long @Nullable [] array, int count, long value) {
+        if (array == null) {
+            array = new long[INITIAL_REQUESTS];
+        } else if (count == array.length) {
+            array = Arrays.copyOf(array, count << 1);
+        }
+
+        array[count] = value;
+
+        return array;
+    }
+
+    /**
+     * Removes the value at the index by moving the last value into its place.
+     * @return the new count of the array
+     */
+    private static int remove(@Nullable UUID @NonNull [] array, int count, int index) {
+        array[index] = array[--count];
+        array[count] = null;
+
+        return count;
+    }
+
+    private static final class PlayerSession {
+
+        private final @NonNull UUID playerId;
+
+        /**
+         * The current transaction of the player, read without holding the lock.
+         */
+        private volatile @Nullable Transaction transaction = null;
+
+        /**
+         * The recipients of the requests sent by the player.
+         */
+        private @Nullable UUID @Nullable [] outgoing = null;
+        /**
+         * The stamps of the requests sent by the player, parallel to the recipients.
+         */
+        private long @Nullable [] outgoingStamps = null;
+        private int outgoingCount = 0;
+        /**
+         * The senders of the requests received by the player.
+         */
+        private @Nullable UUID @Nullable [] incoming = null;
+        private int incomingCount = 0;
+
+        private PlayerSession(@NonNull UUID playerId) {
+            this.playerId = playerId;
+        }
+    }
+}
\ No newline at end of file
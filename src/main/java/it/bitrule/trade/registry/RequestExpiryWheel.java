@@ -0,0 +1,110 @@
+package it.bitrule.trade.registry;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel holding the expiry of the trade requests.
+ * The wheel has one bucket per tick, the buckets are at least as many as the ticks of the TTL,
+ * so every timer in a bucket is due when the cursor reaches it and no rounds are needed.
+ * Scheduling a timer and expiring it are O(1), the accepted and denied requests are not
+ * removed from the wheel, their timers are skipped when they are due because the stamp
+ * of the request doesn't match anymore.
+ * The timers can be scheduled from any thread, the wheel is advanced by a single repeating task.
+ */
+public final class RequestExpiryWheel {
+
+    /**
+     * The max amount of ticks of the TTL, one hour of one second ticks.
+     * The wheel has a bucket per tick, so the TTL is bounded to keep the wheel small.
+     */
+    public static final int MAX_TTL_TICKS = 3600;
+
+    /**
+     * The amount of ticks a request lives before it expires.
+     */
+    private final int ttlTicks;
+    private final @Nullable Timer @NonNull [] buckets;
+    private final int mask;
+
+    /**
+     * The bucket of the current tick.
+     */
+    private int cursor = 0;
+
+    public RequestExpiryWheel(int ttlTicks) {
+        if (ttlTicks <= 0 || ttlTicks > MAX_TTL_TICKS) {
+            throw new IllegalArgumentException("The request TTL must be between 1 and " + MAX_TTL_TICKS + " ticks.");
+        }
+
+        int size = Integer.highestOneBit(ttlTicks) << 1;
+
+        this.ttlTicks = ttlTicks;
+        this.buckets = new Timer[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules the expiry of a request, it's due after the TTL.
+     * @param sender the mojang id of the player who sent the request
+     * @param recipient the mojang id of the player who received the request
+     * @param stamp the stamp of the request
+     */
+    public synchronized void schedule(@NonNull UUID sender, @NonNull UUID recipient, long stamp) {
+        int bucket = (this.cursor + this.ttlTicks) & this.mask;
+
+        this.buckets[bucket] = new Timer(sender, recipient, stamp, this.buckets[bucket]);
+    }
+
+    /**
+     * Moves the wheel one tick forward.
+     * @param expired the consumer of the timers that are due
+     */
+    public void advance(@NonNull Consumer<Timer> expired) {
+        Timer timer;
+        synchronized (this) {
+            this.cursor = (this.cursor + 1) & this.mask;
+
+            timer = this.buckets[this.cursor];
+            this.buckets[this.cursor] = null;
+        }
+
+        // The due timers are consumed outside the lock, new timers never land on this bucket.
+        for (; timer != null; timer = timer.next) {
+            expired.accept(timer);
+        }
+    }
+
+    /**
+     * The expiry of a request.
+     */
+    public static final class Timer {
+
+        private final @NonNull UUID sender;
+        private final @NonNull UUID recipient;
+        private final long stamp;
+        private final @Nullable Timer next;
+
+        private Timer(@NonNull UUID sender, @NonNull UUID recipient, long stamp, @Nullable Timer next) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.stamp = stamp;
+            this.next = next;
+        }
+
+        public @NonNull UUID sender() {
+            return this.sender;
+        }
+
+        public @NonNull UUID recipient() {
+            return this.recipient;
+        }
+
+        public long stamp() {
+            return this.stamp;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,99 @@
+package it.bitrule.trade.registry;
+
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the amount of trade requests each player can send.
+ * Each bucket is a single long holding the time when the bucket is full again,
+ * so taking a token is one compare and set without any lock (generic cell rate algorithm).
+ * The buckets are kept when the players quit, so relogging doesn't refill them.
+ * A bucket that is full again holds no state, so it's evicted by {@link #evictFull()}.
+ */
+public final class RequestRateLimiter {
+
+    /**
+     * The time it takes to refill one token, in nanoseconds.
+     */
+    private final long refillNanos;
+    /**
+     * How far in the future the full time can be before the bucket is empty, in nanoseconds.
+     */
+    private final long burstNanos;
+
+    /**
+     * Marks a bucket that was evicted, a request that still holds it looks the bucket up again.
+     */
+    private static final long EVICTED = Long.MIN_VALUE;
+
+    private final @NonNull Map<UUID, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param perMinute the amount of tokens refilled per minute
+     * @param burst the max amount of tokens a bucket holds
+     */
+    public RequestRateLimiter(int perMinute, int burst) {
+        if (perMinute <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("The request rate limit must be a positive value.");
+        }
+
+        this.refillNanos = TimeUnit.MINUTES.toNanos(1) / perMinute;
+        this.burstNanos = this.refillNanos * (burst - 1);
+    }
+
+    /**
+     * Takes a token from the bucket of the player.
+     * @param playerId the mojang id of the player
+     * @return true if the player can send a request, false if the bucket is empty
+     */
+    public boolean tryAcquire(@NonNull UUID playerId) {
+        long now = System.nanoTime();
+
+        AtomicLong bucket = this.buckets.get(playerId);
+        if (bucket == null) bucket = this.buckets.computeIfAbsent(playerId, k -> new AtomicLong(now));
+
+        while (true) {
+            long fullAt = bucket.get();
+            if (fullAt == EVICTED) {
+                // The bucket was full when it was evicted, a new one starts full as well.
+                this.buckets.remove(playerId, bucket);
+                bucket = this.buckets.computeIfAbsent(playerId, k -> new AtomicLong(now));
+
+                continue;
+            }
+
+            long from = fullAt - now > 0 ? fullAt : now;
+            if (from - now > this.burstNanos) return false;
+
+            if (bucket.compareAndSet(fullAt, from + this.refillNanos)) return true;
+        }
+    }
+
+    /**
+     * Removes the buckets that are full again, a new bucket would behave the same.
+     * The bucket is marked as evicted before it's removed, so a token taken at the
+     * same time is never lost with it.
+     * @return the amount of buckets that were removed
+     */
+    public int evictFull() {
+        long now = System.nanoTime();
+        int evicted = 0;
+
+        for (Map.Entry<UUID, AtomicLong> entry : this.buckets.entrySet()) {
+            AtomicLong bucket = entry.getValue();
+
+            long fullAt = bucket.get();
+            if (fullAt == EVICTED || fullAt - now > 0 || !bucket.compareAndSet(fullAt, EVICTED)) continue;
+
+            this.buckets.remove(entry.getKey(), bucket);
+            evicted++;
+        }
+
+        return evicted;
+    }
+}
\ No newline at end of file
@@ -1,28 +1,24 @@
 package it.bitrule.trade.registry;
 
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
 
+@RequiredArgsConstructor
 public final class RequestsRegistry {
 
     /**
-     * This map stores the recipients of requests,
-     * where the key is the recipient's UUID and the value is a set of UUIDs of senders.
-     * This allows tracking multiple requests sent to the same recipient.
-     * Each recipient can have multiple senders, and each sender can send requests to multiple recipients.
-     * This is useful for managing trade requests in a multiplayer environment,
-     * where players can send trade requests to each other.
+     * The index holding the trade state of every player.
+     * Each player keeps the requests they sent and the requests they received,
+     * so a player can receive requests from multiple senders and send requests to multiple recipients.
      */
-    private final @NonNull Map<UUID, Set<UUID>> receptors = new ConcurrentHashMap<>();
+    private final @NonNull PlayerSessionIndex sessionIndex;
     /**
-     * This map stores the senders of requests,
-     * where the key is the recipient's UUID and the value is a set of UUIDs of senders.
-     * This allows tracking multiple requests sent to the same recipient.
+     * The wheel holding the expiry of the requests, null if the requests never expire.
      */
-    private final @NonNull Map<UUID, Set<UUID>> sent = new ConcurrentHashMap<>();
+    private final @Nullable RequestExpiryWheel expiryWheel;
 
     /**
      * Checks if a request exists in the registry for the given sender and recipient.
@@ -31,9 +27,23 @@ public final class RequestsRegistry {
      * @return true if the request exists, false otherwise
      */
     public boolean has(@NonNull UUID sender, @NonNull UUID recipient) {
-        return Optional.ofNullable(this.receptors.get(recipient))
-                .map(senders -> senders.contains(sender))
-                .orElse(false);
+        return this.sessionIndex.hasRequest(sender, recipient);
+    }
+
+    /**
+     * @param playerId the unique ID of the player
+     * @return the amount of pending requests sent by the player
+     */
+    public int countSent(@NonNull UUID playerId) {
+        return this.sessionIndex.outgoingCount(playerId);
+    }
+
+    /**
+     * @param playerId the unique ID of the player
+     * @return the amount of pending requests received by the player
+     */
+    public int countReceived(@NonNull UUID playerId) {
+        return this.sessionIndex.incomingCount(playerId);
     }
 
     /**
@@ -42,8 +52,20 @@ public final class RequestsRegistry {
      * @param recipient the unique ID of the player receiving the request
      */
     public void register(@NonNull UUID sender, @NonNull UUID recipient) {
-        this.receptors.computeIfAbsent(recipient, k -> ConcurrentHashMap.newKeySet()).add(sender);
-        this.sent.computeIfAbsent(sender, k -> ConcurrentHashMap.newKeySet()).add(recipient);
+        long stamp = this.sessionIndex.addRequest(sender, recipient);
+        if (stamp == 0L || this.expiryWheel == null) return;
+
+        this.expiryWheel.schedule(sender, recipient, stamp);
+    }
+
+    /**
+     * Unregisters the request of a timer that is due.
+     * The request is only unregistered if it wasn't accepted, denied or sent again since the timer was scheduled.
+     * @param timer the timer that is due
+     * @return true if the request expired, false if it was already gone
+     */
+    public boolean expire(@NonNull RequestExpiryWheel.Timer timer) {
+        return this.sessionIndex.expireRequest(timer.sender(), timer.recipient(), timer.stamp());
     }
 
     /**
@@ -52,69 +74,17 @@ public final class RequestsRegistry {
      * @param recipient the unique ID of the player who received the request
      */
     public void unregister(@NonNull UUID sender, @NonNull UUID recipient) {
-        Set<UUID> senders = this.receptors.get(recipient);
-        if (senders == null) {
-            throw new IllegalArgumentException("No requests found for recipient: " + recipient);
-        }
-
-        Set<UUID> recipients = this.sent.get(sender);
-        if (recipients == null) {
-            throw new IllegalArgumentException("No requests found for sender: " + sender);
+        if (!this.sessionIndex.removeRequest(sender, recipient)) {
+            throw new IllegalArgumentException("No request found from " + sender + " to " + recipient);
         }
-
-        recipients.remove(recipient);
-        senders.remove(sender);
-
-        // If there are no more senders for this recipient, remove the recipient entry
-        if (senders.isEmpty()) this.receptors.remove(recipient);
-
-        // If there are no more recipients for this sender, remove the sender entry
-        if (recipients.isEmpty()) this.sent.remove(sender);
     }
 
     /**
-     * Unregisters all requests sent by a specific player.
+     * Unregisters all requests sent and received by a specific player.
      * @param playerId the unique ID of the player whose requests are to be unregistered
-     * @return a list of UUIDs of recipients who had received requests from the player, or null if no requests were found
-     */
-    public @Nullable List<UUID> clearSent(@NonNull UUID playerId) {
-        Set<UUID> recipients = this.sent.remove(playerId);
-        if (recipients == null) return null;
-
-        for (UUID recipient : recipients) {
-            Set<UUID> senders = this.receptors.get(recipient);
-            if (senders == null) continue;
-
-            senders.remove(playerId);
-
-            if (!senders.isEmpty()) continue;
-            // If there are no more senders for this recipient, remove the recipient entry
-            this.receptors.remove(recipient);
-        }
-
-        return new ArrayList<>(recipients);
-    }
-
-    /**
-     * Unregisters all requests received by a specific player.
-     * @param recipientId the unique ID of the player whose requests are to be cleared
-     * @return a list of UUIDs of senders who had sent requests to the recipient, or null if no requests were found
+     * @return the amount of requests that were unregistered
      */
-    public @Nullable List<UUID> clearReceptors(@NonNull UUID recipientId) {
-        Set<UUID> senders = this.receptors.remove(recipientId);
-        if (senders == null) return null;
-
-        for (UUID sender : senders) {
-            Set<UUID> recipients = this.sent.get(sender);
-            if (recipients == null) continue;
-
-            recipients.remove(recipientId);
-
-            if (!recipients.isEmpty()) continue;
-            // If there are no more recipients for this sender, remove the sender entry
-            this.sent.remove(sender);
-        }
-
-        return new ArrayList<>(senders);
+    public int clear(@NonNull UUID playerId) {
+        return this.sessionIndex.clearRequests(playerId);
     }
 }
\ No newline at end of file
@@ -2,45 +2,28 @@ package it.bitrule.trade.registry;
 
 import it.bitrule.trade.component.Transaction;
 import lombok.NonNull;
-import org.jetbrains.annotations.NonNls;
+import lombok.RequiredArgsConstructor;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
-import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
+@RequiredArgsConstructor
 public final class TransactionRegistry {
 
     /**
-     * This map stores the transaction ID associated with each player.
+     * The index holding the trade state of every player.
      */
-    private final @NonNls Map<UUID, UUID> transactionIdByPlayer = new ConcurrentHashMap<>();
-    /**
-     * This map stores the transactions by their unique ID.
-     */
-    private final @NonNull Map<UUID, Transaction> transactions = new ConcurrentHashMap<>();
+    private final @NonNull PlayerSessionIndex sessionIndex;
 
     /**
-     * Registers a new transaction.
+     * Finds the transaction of a player.
+     * The lookup is a single probe into the session index and doesn't allocate.
      *
      * @param playerId the unique ID of the player
-     * @return the transaction that was registered
+     * @return the transaction of the player, or null if they are not trading
      */
     public @Nullable Transaction findByPlayer(@NonNull UUID playerId) {
-        return Optional.ofNullable(this.transactionIdByPlayer.get(playerId))
-                .map(this::findById)
-                .orElse(null);
-    }
-
-    /**
-     * Finds a transaction by its unique ID.
-     *
-     * @param transactionId the unique ID of the transaction
-     * @return the transaction if found, or null if not found
-     */
-    public @Nullable Transaction findById(@NonNull UUID transactionId) {
-        return this.transactions.get(transactionId);
+        return this.sessionIndex.transaction(playerId);
     }
 
     /**
@@ -49,24 +32,19 @@ public final class TransactionRegistry {
      * @param transaction the transaction to registers
      */
     public void register(@NonNull Transaction transaction) {
-        this.transactions.put(transaction.getId(), transaction);
-
-        // Register the transaction ID for both the sender and the receptor
-        this.transactionIdByPlayer.put(transaction.getReceptor(), transaction.getId());
-        this.transactionIdByPlayer.put(transaction.getSender(), transaction.getId());
+        // Register the transaction for both the sender and the receptor
+        this.sessionIndex.bindTransaction(transaction.getReceptor(), transaction);
+        this.sessionIndex.bindTransaction(transaction.getSender(), transaction);
     }
 
     /**
      * Unregisters a transaction from the registry.
      *
-     * @param transactionId the unique ID of the transaction to unregister
+     * @param transaction the transaction to unregister
      */
-    public void unregister(@NonNull UUID transactionId) {
-        Transaction transaction = this.transactions.remove(transactionId);
-        if (transaction == null) return;
-
-        // Remove the transaction ID for both the sender and the receptor
-        this.transactionIdByPlayer.remove(transaction.getReceptor());
-        this.transactionIdByPlayer.remove(transaction.getSender());
+    public void unregister(@NonNull Transaction transaction) {
+        // Remove the transaction for both the sender and the receptor
+        this.sessionIndex.unbindTransaction(transaction.getReceptor(), transaction);
+        this.sessionIndex.unbindTransaction(transaction.getSender(), transaction);
     }
 }
\ No newline at end of file
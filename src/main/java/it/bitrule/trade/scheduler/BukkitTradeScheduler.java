@@ -0,0 +1,60 @@
+package it.bitrule.trade.scheduler;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Scheduler for the single threaded servers, every task runs on the main thread.
+ */
+@RequiredArgsConstructor
+final class BukkitTradeScheduler implements TradeScheduler {
+
+    private final @NonNull Plugin plugin;
+
+    @Override
+    public void execute(@NonNull Entity entity, @NonNull Runnable task, @Nullable Runnable retired) {
+        if (Bukkit.isPrimaryThread() && TradeScheduler.isPresent(entity)) {
+            task.run();
+        } else {
+            this.runForEntity(entity, task, retired);
+        }
+    }
+
+    @Override
+    public void runForEntity(@NonNull Entity entity, @NonNull Runnable task, @Nullable Runnable retired) {
+        Bukkit.getScheduler().runTask(this.plugin, () -> {
+            if (TradeScheduler.isPresent(entity)) {
+                task.run();
+            } else if (retired != null) {
+                retired.run();
+            }
+        });
+    }
+
+    @Override
+    public void runGlobal(@NonNull Runnable task) {
+        Bukkit.getScheduler().runTask(this.plugin, task);
+    }
+
+    @Override
+    public @NonNull Task runGlobalTimer(@NonNull Runnable task, long delayTicks, long periodTicks) {
+        BukkitTask bukkitTask = Bukkit.getScheduler().runTaskTimer(this.plugin, task, delayTicks, periodTicks);
+
+        return new Task() {
+            @Override
+            public void cancel() {
+                bukkitTask.cancel();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return bukkitTask.isCancelled();
+            }
+        };
+    }
+}
\ No newline at end of file
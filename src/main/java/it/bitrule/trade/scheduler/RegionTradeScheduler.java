@@ -0,0 +1,64 @@
+package it.bitrule.trade.scheduler;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Scheduler for the region threaded servers (Folia).
+ * The tasks of a player run on their entity scheduler, so they follow the player across regions,
+ * and the timers run on the global region scheduler.
+ */
+@RequiredArgsConstructor
+final class RegionTradeScheduler implements TradeScheduler {
+
+    private final @NonNull Plugin plugin;
+
+    @Override
+    public void execute(@NonNull Entity entity, @NonNull Runnable task, @Nullable Runnable retired) {
+        if (Bukkit.isOwnedByCurrentRegion(entity) && TradeScheduler.isPresent(entity)) {
+            task.run();
+        } else {
+            this.runForEntity(entity, task, retired);
+        }
+    }
+
+    @Override
+    public void runForEntity(@NonNull Entity entity, @NonNull Runnable task, @Nullable Runnable retired) {
+        ScheduledTask scheduledTask = entity.getScheduler().run(this.plugin, t -> task.run(), retired);
+
+        // The entity was already removed, the retired callback is not called in that case.
+        if (scheduledTask == null && retired != null) retired.run();
+    }
+
+    @Override
+    public void runGlobal(@NonNull Runnable task) {
+        Bukkit.getGlobalRegionScheduler().execute(this.plugin, task);
+    }
+
+    @Override
+    public @NonNull Task runGlobalTimer(@NonNull Runnable task, long delayTicks, long periodTicks) {
+        ScheduledTask scheduledTask = Bukkit.getGlobalRegionScheduler().runAtFixedRate(
+                this.plugin,
+                t -> task.run(),
+                Math.max(1L, delayTicks),
+                periodTicks
+        );
+
+        return new Task() {
+            @Override
+            public void cancel() {
+                scheduledTask.cancel();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return scheduledTask.isCancelled();
+            }
+        };
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package it.bitrule.trade.scheduler;
+
+import lombok.NonNull;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Dispatches the work of the trade engine to the thread that owns it.
+ * On a single threaded server everything runs on the main thread, on a region threaded
+ * server (Folia) the work of a player runs on the thread of the region the player is in,
+ * so the trades in different regions run in parallel.
+ * Any work that touches the inventory or the location of a player must be dispatched with
+ * {@link #execute(Entity, Runnable, Runnable)} or {@link #runForEntity(Entity, Runnable, Runnable)}.
+ */
+public interface TradeScheduler {
+
+    /**
+     * Runs the task on the thread that owns the entity.
+     * If the current thread already owns it, the task runs right away.
+     * @param entity the entity that owns the task
+     * @param task the task to run
+     * @param retired the task to run instead if the entity was removed before the task ran, it may run on any thread
+     */
+    void execute(@NonNull Entity entity, @NonNull Runnable task, @Nullable Runnable retired);
+
+    /**
+     * Runs the task on the next tick of the thread that owns the entity.
+     * @param entity the entity that owns the task
+     * @param task the task to run
+     * @param retired the task to run instead if the entity was removed before the task ran, it may run on any thread
+     */
+    void runForEntity(@NonNull Entity entity, @NonNull Runnable task, @Nullable Runnable retired);
+
+    /**
+     * Runs the task on the next tick of the global thread.
+     * The global thread doesn't own any player, it must only touch thread-safe state.
+     * @param task the task to run
+     */
+    void runGlobal(@NonNull Runnable task);
+
+    /**
+     * Runs the task repeatedly on the global thread.
+     * @param task the task to run
+     * @param delayTicks the ticks to wait before the first run, at least 1
+     * @param periodTicks the ticks between each run
+     * @return the handle to cancel the task
+     */
+    @NonNull Task runGlobalTimer(@NonNull Runnable task, long delayTicks, long periodTicks);
+
+    /**
+     * A task that was scheduled to run repeatedly.
+     */
+    interface Task {
+
+        void cancel();
+
+        boolean isCancelled();
+    }
+
+    /**
+     * @param entity the entity to check
+     * @return true if the entity is still in the server, a player is present while connected, even if dead
+     */
+    static boolean isPresent(@NonNull Entity entity) {
+        return entity instanceof Player player ? player.isConnected() : entity.isValid();
+    }
+
+    /**
+     * Creates the scheduler for the running server.
+     * @param plugin the plugin that owns the tasks
+     * @return the region scheduler if the server is region threaded, the Bukkit scheduler otherwise
+     */
+    static @NonNull TradeScheduler create(@NonNull Plugin plugin) {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+
+            return new RegionTradeScheduler(plugin);
+        } catch (ClassNotFoundException ex) {
+            return new BukkitTradeScheduler(plugin);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+package it.bitrule.trade.task;
+
+import dev.triumphteam.gui.guis.BaseGui;
+import it.bitrule.trade.MessageAssets;
+import it.bitrule.trade.component.Transaction;
+import it.bitrule.trade.manager.TradeManager;
+import it.bitrule.trade.scheduler.TradeScheduler;
+import it.bitrule.trade.usecase.TradeReadyUseCase;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import net.kyori.adventure.text.Component;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Drives the countdowns of all the transactions whose participants are both ready.
+ * A single task runs once per second on the global thread, and advances every active countdown
+ * in one pass over compact arrays, so a countdown costs no scheduled task of its own.
+ * The GUI of each participant is updated on the thread that owns the participant,
+ * which is the same thread of the driver on a single threaded server.
+ * A countdown is dropped on the next pass once its transaction leaves the countdown phase,
+ * or once any participant disconnects.
+ */
+@RequiredArgsConstructor
+public final class CountdownDriver implements Runnable {
+
+    /**
+     * The seconds a countdown lasts.
+     */
+    public static final int COUNTDOWN_SECONDS = 5;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final @NonNull TradeScheduler scheduler;
+
+    /**
+     * The active countdowns, the participants of the countdown at index i are at 2i and 2i + 1.
+     */
+    private @Nullable Transaction @NonNull [] transactions = new Transaction[INITIAL_CAPACITY];
+    private @Nullable Player @NonNull [] participants = new Player[INITIAL_CAPACITY << 1];
+    private int @NonNull [] remaining = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * The countdowns advanced by the current pass, only touched by the driver task.
+     * They are kept between passes so a pass doesn't allocate.
+     */
+    private @Nullable Transaction @NonNull [] ticking = new Transaction[INITIAL_CAPACITY];
+    private @Nullable Player @NonNull [] tickingParticipants = new Player[INITIAL_CAPACITY << 1];
+    private int @NonNull [] tickingRemaining = new int[INITIAL_CAPACITY];
+
+    /**
+     * Starts the countdown of a transaction.
+     * @param transaction the transaction to end once the countdown finishes
+     * @param first the first participant of the transaction
+     * @param second the second participant of the transaction
+     * @return true if the countdown was started, false if it was already counting down
+     */
+    public synchronized boolean start(@NonNull Transaction transaction, @NonNull Player first, @NonNull Player second) {
+        if (this.indexOf(transaction) != -1) return false;
+
+        if (this.size == this.transactions.length) {
+            int capacity = this.size << 1;
+
+            this.transactions = Arrays.copyOf(this.transactions, capacity);
+            this.participants = Arrays.copyOf(this.participants, capacity << 1);
+            this.remaining = Arrays.copyOf(this.remaining, capacity);
+        }
+
+        int index = this.size++;
+
+        this.transactions[index] = transaction;
+        this.participants[index << 1] = first;
+        this.participants[(index << 1) + 1] = second;
+        this.remaining[index] = COUNTDOWN_SECONDS;
+
+        return true;
+    }
+
+    /**
+     * Stops the countdown of a transaction.
+     * @param transaction the transaction whose countdown is stopped
+     * @return true if the transaction was counting down
+     */
+    public synchronized boolean stop(@NonNull Transaction transaction) {
+        int index = this.indexOf(transaction);
+        if (index == -1) return false;
+
+        this.removeAt(index);
+
+        return true;
+    }
+
+    /**
+     * Advances all the countdowns one second.
+     */
+    @Override
+    public void run() {
+        int count = 0;
+
+        synchronized (this) {
+            if (this.size == 0) return;
+
+            if (this.ticking.length < this.size) {
+                this.ticking = new Transaction[this.transactions.length];
+                this.tickingParticipants = new Player[this.participants.length];
+                this.tickingRemaining = new int[this.remaining.length];
+            }
+
+            for (int index = 0; index < this.size; ) {
+                Transaction transaction = this.transactions[index];
+                Player first = this.participants[index << 1];
+                Player second = this.participants[(index << 1) + 1];
+
+                if (transaction.getPhase() != Transaction.COUNTDOWN || !first.isConnected() || !second.isConnected()) {
+                    this.removeAt(index);
+                    continue;
+                }
+
+                int remaining = this.remaining[index]--;
+
+                this.ticking[count] = transaction;
+                this.tickingParticipants[count << 1] = first;
+                this.tickingParticipants[(count << 1) + 1] = second;
+                this.tickingRemaining[count++] = remaining;
+
+                // The last second is shown before the transaction ends, so the countdown is done.
+                if (remaining <= 0) {
+                    this.removeAt(index);
+                } else {
+                    index++;
+                }
+            }
+        }
+
+        // The GUIs are updated outside the lock, the participants may be owned by other threads.
+        for (int index = 0; index < count; index++) {
+            Transaction transaction = this.ticking[index];
+            Player first = this.tickingParticipants[index << 1];
+            Player second = this.tickingParticipants[(index << 1) + 1];
+            int remaining = this.tickingRemaining[index];
+
+            this.ticking[index] = null;
+            this.tickingParticipants[index << 1] = null;
+            this.tickingParticipants[(index << 1) + 1] = null;
+
+            this.update(transaction, first, second.getName(), remaining);
+            this.update(transaction, second, first.getName(), remaining);
+
+            if (remaining > 0) continue;
+
+            TradeManager.getInstance().end(new Player[]{first, second}, transaction.getId());
+        }
+    }
+
+    /**
+     * Shows the remaining seconds of the countdown to a participant.
+     * @param transaction the transaction that is counting down
+     * @param player the participant
+     * @param recipientName the name of the other participant
+     * @param remaining the remaining seconds
+     */
+    private void update(@NonNull Transaction transaction, @NonNull Player player, @NonNull String recipientName, int remaining) {
+        Inventory inventory = transaction.getInventory(player.getUniqueId());
+        if (inventory == null) return;
+
+        Component message = MessageAssets.TRANSACTION_ENDING_COUNTDOWN.build(
+                recipientName,
+                remaining > 1 ? remaining + " segundos" : "1 segundo"
+        );
+
+        this.scheduler.execute(player, () -> {
+            // If the player closed the trade GUI, the transaction is being cancelled.
+            if (!(inventory.getHolder() instanceof BaseGui gui) || player.getOpenInventory().getTopInventory() != inventory) return;
+
+            player.sendMessage(message);
+            gui.updateItem(12, TradeReadyUseCase.getSelfReadyItemStack(player, recipientName, remaining));
+        }, null);
+    }
+
+    private int indexOf(@NonNull Transaction transaction) {
+        for (int index = 0; index < this.size; index++) {
+            if (this.transactions[index] == transaction) return index;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Removes the countdown at the given index, the last countdown is moved into its place.
+     * @param index the index of the countdown
+     */
+    private void removeAt(int index) {
+        int last = --this.size;
+
+        this.transactions[index] = this.transactions[last];
+        this.participants[index << 1] = this.participants[last << 1];
+        this.participants[(index << 1) + 1] = this.participants[(last << 1) + 1];
+        this.remaining[index] = this.remaining[last];
+
+        this.transactions[last] = null;
+        this.participants[last << 1] = null;
+        this.participants[(last << 1) + 1] = null;
+    }
+}
\ No newline at end of file
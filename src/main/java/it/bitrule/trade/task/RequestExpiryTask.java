@@ -0,0 +1,40 @@
+package it.bitrule.trade.task;
+
+import it.bitrule.trade.MessageAssets;
+import it.bitrule.trade.registry.RequestExpiryWheel;
+import it.bitrule.trade.registry.RequestsRegistry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+@RequiredArgsConstructor
+public final class RequestExpiryTask implements Runnable {
+
+    /**
+     * The wheel holding the expiry of the requests, it's moved one tick forward on each run.
+     */
+    private final @NonNull RequestExpiryWheel expiryWheel;
+    /**
+     * Registry for managing trade requests.
+     */
+    private final @NonNull RequestsRegistry requestsRegistry;
+
+    /**
+     * Runs this operation.
+     */
+    @Override
+    public void run() {
+        this.expiryWheel.advance(timer -> {
+            if (!this.requestsRegistry.expire(timer)) return;
+
+            Player sender = Bukkit.getPlayer(timer.sender());
+            Player recipient = Bukkit.getPlayer(timer.recipient());
+
+            if (sender != null && recipient != null) {
+                sender.sendMessage(MessageAssets.REQUEST_EXPIRED.build(recipient.getName()));
+                recipient.sendMessage(MessageAssets.REQUEST_RECEIVED_EXPIRED.build(sender.getName()));
+            }
+        });
+    }
+}
\ No newline at end of file
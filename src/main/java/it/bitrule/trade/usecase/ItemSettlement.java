@@ -0,0 +1,283 @@
+package it.bitrule.trade.usecase;
+
+import it.bitrule.trade.MessageAssets;
+import it.bitrule.trade.persistence.TradeMailbox;
+import lombok.NonNull;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Settles the items a player receives from a trade.
+ * The resulting inventory is first computed on a copy of the player's storage contents,
+ * in a single pass that merges the received items into the similar stacks before using the empty slots,
+ * and then applied with a single {@link Inventory#setStorageContents(ItemStack[])} call.
+ * The items that don't fit are consolidated into full stacks and handled by the {@link OverflowPolicy}.
+ * If the mailbox can't take them, they go to the ender chest, and the ones that don't fit there either are dropped.
+ * It must be called from the thread that owns the player.
+ */
+public final class ItemSettlement {
+
+    /**
+     * What happens with the received items that don't fit in the player's inventory.
+     */
+    private final @NonNull OverflowPolicy overflowPolicy;
+    /**
+     * The mailbox where the items that don't fit are stored, used by the {@link OverflowPolicy#MAILBOX} policy.
+     * It's null if the mailbox is not available.
+     */
+    private final @Nullable TradeMailbox mailbox;
+    private final @NonNull Logger logger;
+
+    public ItemSettlement(@NonNull OverflowPolicy overflowPolicy, @Nullable TradeMailbox mailbox, @NonNull Logger logger) {
+        if (overflowPolicy == OverflowPolicy.MAILBOX && mailbox == null) {
+            throw new IllegalArgumentException("The MAILBOX overflow policy needs a mailbox.");
+        }
+
+        this.overflowPolicy = overflowPolicy;
+        this.mailbox = mailbox;
+        this.logger = logger;
+    }
+
+    /**
+     * Gives the items to the player.
+     * @param player the player who receives the items
+     * @param itemStacks the items to give
+     */
+    public void settle(@NonNull Player player, @NonNull ItemStack @NonNull [] itemStacks) {
+        if (itemStacks.length == 0) return;
+
+        Inventory inventory = player.getInventory();
+        ItemStack[] contents = copyOf(inventory.getStorageContents());
+        List<ItemStack> overflow = merge(contents, itemStacks);
+
+        inventory.setStorageContents(contents);
+
+        if (overflow.isEmpty()) return;
+
+        if (this.mailbox != null && this.overflowPolicy == OverflowPolicy.MAILBOX) {
+            if (this.mailbox.post(player.getUniqueId(), serialize(overflow))) {
+                player.sendMessage(MessageAssets.MAILBOX_STORED.build(overflow.size()));
+                return;
+            }
+
+            // The mailbox is full, the items that don't fit go to the ender chest instead.
+            this.logger.warning("[Settlement] The mailbox is full, the overflow of " + player.getName() + " is stored in the ender chest.");
+        }
+
+        if (this.overflowPolicy != OverflowPolicy.DROP) {
+            Inventory enderChest = player.getEnderChest();
+            ItemStack[] enderChestContents = copyOf(enderChest.getStorageContents());
+            overflow = merge(enderChestContents, overflow.toArray(new ItemStack[0]));
+
+            enderChest.setStorageContents(enderChestContents);
+        }
+
+        for (ItemStack itemStack : overflow) {
+            player.getWorld().dropItemNaturally(player.getLocation(), itemStack);
+        }
+    }
+
+    /**
+     * @param itemStacks the items to serialize
+     * @return the items serialized as bytes, in the same order
+     */
+    static @NonNull List<byte[]> serialize(@NonNull List<ItemStack> itemStacks) {
+        List<byte[]> serializedItems = new ArrayList<>(itemStacks.size());
+        for (ItemStack itemStack : itemStacks) {
+            serializedItems.add(itemStack.serializeAsBytes());
+        }
+
+        return serializedItems;
+    }
+
+    /**
+     * Takes the items at the given slots out of an inventory and gives them back to the player.
+     * Used to give back the items offered at a trade GUI, all of them are settled at once.
+     * @param player the player who receives the items
+     * @param inventory the inventory holding the items
+     * @param slots the slots of the inventory to take the items from
+     */
+    public void giveBack(@NonNull Player player, @NonNull Inventory inventory, int @NonNull [] slots) {
+        this.settle(player, takeItems(inventory, slots));
+    }
+
+    private static @NonNull ItemStack @NonNull [] takeItems(@NonNull Inventory inventory, int @NonNull [] slots) {
+        List<ItemStack> itemStacks = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            ItemStack itemStack = inventory.getItem(slot);
+            if (itemStack == null || itemStack.isEmpty()) continue;
+
+            itemStacks.add(itemStack.clone());
+            inventory.setItem(slot, null);
+        }
+
+        return itemStacks.toArray(new ItemStack[0]);
+    }
+
+    /**
+     * Keeps the items of a player who left before receiving them.
+     * They are posted to the mailbox if there is one, so they are delivered on the next join,
+     * otherwise they are dumped into the server log to be restored by hand.
+     * The items must not be owned by any thread anymore, so this can be called from any thread.
+     * @param ownerId the mojang id of the player who owns the items
+     * @param itemStacks the items to keep
+     */
+    public void recover(@NonNull UUID ownerId, @NonNull ItemStack @NonNull [] itemStacks) {
+        if (itemStacks.length == 0) return;
+
+        List<byte[]> serializedItems = serialize(List.of(itemStacks));
+        if (this.mailbox != null && this.mailbox.post(ownerId, serializedItems)) return;
+
+        TradeMailbox.dump(this.logger, ownerId, serializedItems, "The owner left and the mailbox is not available");
+    }
+
+    /**
+     * Takes the items at the given slots out of an inventory nobody owns anymore and keeps them for their owner.
+     * @param ownerId the mojang id of the player who owns the items
+     * @param inventory the inventory holding the items
+     * @param slots the slots of the inventory to take the items from
+     * @see #recover(UUID, ItemStack[])
+     */
+    public void recover(@NonNull UUID ownerId, @NonNull Inventory inventory, int @NonNull [] slots) {
+        this.recover(ownerId, takeItems(inventory, slots));
+    }
+
+    /**
+     * Merges the items into the contents, the contents are modified in place.
+     * The similar items are grouped first, so the contents are scanned once for all of them:
+     * the similar stacks that are not full are topped up during the scan, and the groups
+     * that still have items left are placed at the empty slots found by the scan.
+     * @param contents the contents to merge into, the empty slots may be null
+     * @param itemStacks the items to merge
+     * @return the items that didn't fit, consolidated into as few stacks as possible
+     */
+    static @NonNull List<ItemStack> merge(@Nullable ItemStack @NonNull [] contents, @NonNull ItemStack @NonNull [] itemStacks) {
+        // The offered items are usually a few kinds of items, each group holds the total amount of a kind.
+        List<ItemStack> groups = new ArrayList<>(itemStacks.length);
+        List<Integer> amounts = new ArrayList<>(itemStacks.length);
+        for (ItemStack itemStack : itemStacks) {
+            if (itemStack == null || itemStack.isEmpty()) continue;
+
+            int group = indexOfSimilar(groups, itemStack);
+            if (group == -1) {
+                groups.add(itemStack);
+                amounts.add(itemStack.getAmount());
+            } else {
+                amounts.set(group, amounts.get(group) + itemStack.getAmount());
+            }
+        }
+
+        int[] remaining = new int[groups.size()];
+        for (int group = 0; group < remaining.length; group++) {
+            remaining[group] = amounts.get(group);
+        }
+
+        int[] emptySlots = new int[contents.length];
+        int emptySlotsCount = 0;
+        for (int slot = 0; slot < contents.length; slot++) {
+            ItemStack content = contents[slot];
+            if (content == null || content.isEmpty()) {
+                emptySlots[emptySlotsCount++] = slot;
+                continue;
+            }
+
+            int group = indexOfSimilar(groups, content);
+            if (group == -1 || remaining[group] == 0) continue;
+
+            int moved = Math.min(remaining[group], content.getMaxStackSize() - content.getAmount());
+            if (moved <= 0) continue;
+
+            content.setAmount(content.getAmount() + moved);
+            remaining[group] -= moved;
+        }
+
+        List<ItemStack> overflow = new ArrayList<>();
+
+        int emptySlot = 0;
+        for (int group = 0; group < remaining.length; group++) {
+            ItemStack itemStack = groups.get(group);
+            int maxStackSize = itemStack.getMaxStackSize();
+
+            while (remaining[group] > 0 && emptySlot < emptySlotsCount) {
+                int moved = Math.min(remaining[group], maxStackSize);
+                contents[emptySlots[emptySlot++]] = itemStack.asQuantity(moved);
+                remaining[group] -= moved;
+            }
+
+            if (remaining[group] > 0) consolidate(overflow, itemStack, remaining[group]);
+        }
+
+        return overflow;
+    }
+
+    private static int indexOfSimilar(@NonNull List<ItemStack> itemStacks, @NonNull ItemStack itemStack) {
+        for (int index = 0; index < itemStacks.size(); index++) {
+            if (itemStacks.get(index).isSimilar(itemStack)) return index;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Adds an amount of an item to the overflow, filling the similar stacks first.
+     * @param overflow the overflow stacks
+     * @param itemStack the item to add
+     * @param amount the amount to add
+     */
+    private static void consolidate(@NonNull List<ItemStack> overflow, @NonNull ItemStack itemStack, int amount) {
+        int maxStackSize = itemStack.getMaxStackSize();
+
+        for (ItemStack overflowStack : overflow) {
+            if (amount == 0) return;
+            if (overflowStack.getAmount() >= maxStackSize || !overflowStack.isSimilar(itemStack)) continue;
+
+            int moved = Math.min(amount, maxStackSize - overflowStack.getAmount());
+            overflowStack.setAmount(overflowStack.getAmount() + moved);
+            amount -= moved;
+        }
+
+        while (amount > 0) {
+            int moved = Math.min(amount, maxStackSize);
+            overflow.add(itemStack.asQuantity(moved));
+            amount -= moved;
+        }
+    }
+
+    /**
+     * @param contents the contents to copy
+     * @return a copy of the contents where every item stack is cloned
+     */
+    private static @Nullable ItemStack @NonNull [] copyOf(@Nullable ItemStack @NonNull [] contents) {
+        ItemStack[] copy = new ItemStack[contents.length];
+        for (int slot = 0; slot < contents.length; slot++) {
+            ItemStack content = contents[slot];
+            copy[slot] = content == null || content.isEmpty() ? null : content.clone();
+        }
+
+        return copy;
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * The items that don't fit are dropped at the player's location.
+         */
+        DROP,
+        /**
+         * The items that don't fit are stored in the player's ender chest,
+         * and only the ones that don't fit there either are dropped.
+         */
+        ENDER_CHEST,
+        /**
+         * The items that don't fit are stored in the player's mailbox,
+         * they are delivered on the next join or with the mailbox command.
+         */
+        MAILBOX
+    }
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+package it.bitrule.trade.usecase;
+
+import lombok.NonNull;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of the rendered ready-state items, keyed by the partner name.
+ * Each partner holds one item per state: the countdown states (0 to 5),
+ * the not done state (7) of the self item, and the done and not done states of the other item.
+ * The least recently used partners are evicted once the capacity is reached.
+ * The cached items are templates, callers always receive a clone.
+ */
+final class ReadyItemCache {
+
+    /**
+     * The amount of states of the self item, indexed by the remaining countdown.
+     */
+    static final int SELF_STATES = 8;
+    static final int OTHER_NOT_DONE_STATE = SELF_STATES;
+    static final int OTHER_DONE_STATE = SELF_STATES + 1;
+
+    private static final int STATES = SELF_STATES + 2;
+
+    private final @NonNull Map<String, ItemStack[]> entries;
+
+    ReadyItemCache(int capacity) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ItemStack[]> eldest) {
+                return this.size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the item for the given partner and state,
+     * rendering it first if it was not cached.
+     * @param partnerName the name of the partner the item is rendered for
+     * @param state the state of the item
+     * @param renderer the function that renders the item
+     * @return a copy of the cached item
+     */
+    synchronized @NonNull ItemStack get(@NonNull String partnerName, int state, @NonNull Supplier<ItemStack> renderer) {
+        if (state < 0 || state >= STATES) return renderer.get();
+
+        ItemStack[] states = this.entries.computeIfAbsent(partnerName, k -> new ItemStack[STATES]);
+
+        ItemStack itemStack = states[state];
+        if (itemStack == null) {
+            itemStack = renderer.get();
+            states[state] = itemStack;
+        }
+
+        return itemStack.clone();
+    }
+
+    /**
+     * Evicts the items rendered for the given partner.
+     * @param partnerName the name of the partner
+     */
+    synchronized void invalidate(@NonNull String partnerName) {
+        this.entries.remove(partnerName);
+    }
+}
\ No newline at end of file
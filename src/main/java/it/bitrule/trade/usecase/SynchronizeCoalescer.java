@@ -0,0 +1,283 @@
+package it.bitrule.trade.usecase;
+
+import it.bitrule.trade.Trade;
+import it.bitrule.trade.component.ChangedItemStack;
+import it.bitrule.trade.component.Transaction;
+import it.bitrule.trade.component.TransactionLog;
+import it.bitrule.trade.persistence.TradeLogWriter;
+import it.bitrule.trade.scheduler.TradeScheduler;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Coalesces the synchronization of the trade GUIs.
+ * Any amount of clicks and drags made by a player within one tick only mark their slots
+ * as dirty, and a single task at the end of the tick mirrors and compares the dirty slots
+ * once for each player. The old items of a slot are the ones it had before the first
+ * interaction of the tick, so the logged change is the net change of the tick.
+ * Once the log of a transaction reaches the buffered logs cap, the buffered changes are
+ * spilled to the log writer as a part of the transaction log, so a long trade never
+ * holds an unbounded amount of changes in memory.
+ * The pending synchronization of a player is only touched by the thread that owns the player,
+ * the flush of each player is scheduled on that thread and the mirrored items are handed over
+ * to the thread that owns the recipient.
+ */
+@RequiredArgsConstructor
+public final class SynchronizeCoalescer {
+
+    private final @NonNull Plugin plugin;
+    private final @NonNull TradeScheduler scheduler;
+    private final @NonNull TradeLogWriter logWriter;
+    /**
+     * The max amount of changes buffered by a transaction before they are spilled.
+     */
+    private final int maxBufferedLogs;
+
+    /**
+     * The pending synchronizations of the current tick, keyed by the player id.
+     */
+    private final @NonNull Map<UUID, PendingSynchronization> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Marks the slots touched by an interaction of the player as dirty.
+     * @param player the player who touched the trade GUI
+     * @param transaction the transaction associated with the trade
+     * @param inventory the inventory of the trade GUI
+     * @param dirtySlots the bitmask of the slots touched by the interaction
+     * @param oldItems the items of the touched slots before the interaction, indexed by slot
+     */
+    void mark(
+            @NonNull Player player,
+            @NonNull Transaction transaction,
+            @NonNull Inventory inventory,
+            long dirtySlots,
+            @Nullable ItemStack @NonNull [] oldItems
+    ) {
+        if (dirtySlots == 0L) return;
+
+        UUID playerId = player.getUniqueId();
+
+        PendingSynchronization pendingSynchronization = this.pending.get(playerId);
+        if (pendingSynchronization != null && pendingSynchronization.inventory == inventory) {
+            // Only the slots touched for the first time in this tick keep their old items.
+            long newSlots = dirtySlots & ~pendingSynchronization.dirtySlots;
+            while (newSlots != 0) {
+                int slot = Long.numberOfTrailingZeros(newSlots);
+                newSlots &= newSlots - 1;
+
+                pendingSynchronization.oldItems[slot] = oldItems[slot];
+            }
+
+            pendingSynchronization.dirtySlots |= dirtySlots;
+
+            return;
+        }
+
+        this.pending.put(playerId, new PendingSynchronization(player, transaction, inventory, dirtySlots, oldItems));
+
+        // The flush is already scheduled if the player had a pending synchronization.
+        if (pendingSynchronization == null) {
+            this.scheduler.runForEntity(player, () -> this.flush(playerId), () -> this.pending.remove(playerId));
+        }
+    }
+
+    /**
+     * Flushes the pending synchronization of a player.
+     * @param playerId the mojang id of the player
+     */
+    private void flush(@NonNull UUID playerId) {
+        PendingSynchronization pendingSynchronization = this.pending.remove(playerId);
+        if (pendingSynchronization == null) return;
+
+        Transaction transaction = pendingSynchronization.transaction;
+        if (transaction.isCancelled() || transaction.isEnded()) return;
+
+        try {
+            this.synchronize(
+                    pendingSynchronization.player,
+                    transaction,
+                    pendingSynchronization.dirtySlots,
+                    pendingSynchronization.oldItems,
+                    pendingSynchronization.inventory
+            );
+        } catch (Exception ex) {
+            this.plugin.getLogger().log(Level.SEVERE, "Failed to synchronize the trade of " + pendingSynchronization.player.getName(), ex);
+            pendingSynchronization.player.closeInventory();
+        }
+    }
+
+    /**
+     * Synchronizes the inventories of the player and the transaction.
+     * This method is called once per tick for each player who touched the trade GUI.
+     * It updates the items in the trade GUI and the transaction
+     * based on the player's actions.
+     * Only the slots touched by the player's actions are mirrored and compared,
+     * the rest of the slots are known to be unchanged.
+     * @param player the player who clicked on the trade GUI
+     * @param transaction the transaction associated with the trade
+     * @param dirtySlots the bitmask of the slots touched by the player, each bit is a slot of the trade GUI
+     * @param oldItems the items of the dirty slots before the first click of the tick, indexed by slot. It is annotated as @Nullable just for the Class Type, then the array is never null.
+     * @param from the inventory from which the click originated
+     */
+    private void synchronize(
+            @NonNull Player player,
+            @NonNull Transaction transaction,
+            long dirtySlots,
+            @Nullable ItemStack @NonNull [] oldItems,
+            @NonNull Inventory from
+    ) {
+        UUID recipientId;
+        if (transaction.getSender().equals(player.getUniqueId())) {
+            recipientId = transaction.getReceptor();
+        } else {
+            recipientId = transaction.getSender();
+        }
+
+        // If the recipient is not viewing the trade GUI, we close the trade of the player.
+        Player recipient = Bukkit.getPlayer(recipientId);
+        Inventory recipientInventory = transaction.getInventory(recipientId);
+        if (recipient == null || !recipient.isConnected() || recipientInventory == null) {
+            player.closeInventory();
+            return;
+        }
+
+        // The mirrored items are copied, because the recipient's GUI is written by the thread that owns the recipient.
+        long mirroredSlots = 0L;
+        ItemStack[] mirroredItems = new ItemStack[from.getSize()];
+
+        long remainingSlots = dirtySlots;
+        while (remainingSlots != 0) {
+            int slot = Long.numberOfTrailingZeros(remainingSlots);
+            remainingSlots &= remainingSlots - 1;
+
+            if (!Trade.isViewerSlot(slot)) continue;
+
+            ItemStack newItem = from.getItem(slot);
+            if (newItem != null && newItem.isEmpty()) newItem = null;
+
+            mirroredSlots |= 1L << slot;
+            mirroredItems[slot] = newItem != null ? newItem.clone() : null;
+
+            // After mirroring the slot, we compare the contents to see if there was any change.
+            // The changes are logged at database when the transaction ends.
+            ItemStack oldItem = oldItems[slot];
+            if (newItem == null && oldItem == null) continue;
+
+            ChangedItemStack.ChangeType changeType;
+            if (oldItem == null) { // If oldItem is null, it means the item was added.
+                changeType = ChangedItemStack.ChangeType.ADD;
+            } else if (newItem == null) { // If newItem is null, it means the item was removed.
+                changeType = ChangedItemStack.ChangeType.REMOVE;
+            } else if (!oldItem.equals(newItem)) { // If both items are not null, we check if they are different.
+                changeType = ChangedItemStack.ChangeType.CHANGE;
+            } else {
+                continue;
+            }
+
+            transaction.getLogs().append(slot, player.getUniqueId().equals(transaction.getSender()), oldItem, newItem, changeType);
+        }
+
+        this.spill(transaction);
+
+        if (mirroredSlots != 0L) this.mirror(player, recipient, recipientInventory, mirroredSlots, mirroredItems);
+    }
+
+    /**
+     * Writes the mirrored items at the trade GUI of the recipient, on the thread that owns the recipient.
+     * If the recipient is not viewing the trade GUI anymore, the trade GUI of the player is closed.
+     * @param player the player who touched the trade GUI
+     * @param recipient the other participant of the trade
+     * @param recipientInventory the inventory of the trade GUI of the recipient
+     * @param mirroredSlots the bitmask of the slots of the player to mirror
+     * @param mirroredItems the copied items of the mirrored slots, indexed by slot
+     */
+    private void mirror(
+            @NonNull Player player,
+            @NonNull Player recipient,
+            @NonNull Inventory recipientInventory,
+            long mirroredSlots,
+            @Nullable ItemStack @NonNull [] mirroredItems
+    ) {
+        Runnable closePlayer = () -> this.scheduler.runForEntity(player, player::closeInventory, null);
+
+        this.scheduler.execute(recipient, () -> {
+            if (recipient.getOpenInventory().getTopInventory() != recipientInventory) {
+                closePlayer.run();
+                return;
+            }
+
+            long remainingSlots = mirroredSlots;
+            while (remainingSlots != 0) {
+                int slot = Long.numberOfTrailingZeros(remainingSlots);
+                remainingSlots &= remainingSlots - 1;
+
+                ItemStack mirroredItem = mirroredItems[slot];
+                recipientInventory.setItem(Trade.mirrorSlot(slot), mirroredItem != null ? mirroredItem : new ItemStack(Material.AIR));
+            }
+        }, closePlayer);
+    }
+
+    /**
+     * Hands the buffered changes of the transaction over to the log writer once they reach the cap,
+     * they are stored as a part document linked to the transaction id.
+     * Both participants may reach the cap at the same time on a region threaded server,
+     * only the one that drains the buffer writes the part.
+     * @param transaction the transaction whose changes are spilled
+     */
+    private void spill(@NonNull Transaction transaction) {
+        TransactionLog.Chunk chunk = transaction.getLogs().drainIfAtLeast(this.maxBufferedLogs);
+        if (chunk == null) return;
+
+        UUID transactionId = transaction.getId();
+        UUID sender = transaction.getSender();
+        UUID receptor = transaction.getReceptor();
+        Date createdAt = new Date();
+
+        String partId = transactionId + ":" + chunk.part();
+        this.logWriter.submit(partId, () -> new Document("_id", partId)
+                .append("transaction_id", transactionId.toString())
+                .append("part", chunk.part())
+                .append("items_log", chunk.asDocuments(sender, receptor))
+                .append("created_at", createdAt)
+        );
+    }
+
+
+    private static final class PendingSynchronization {
+
+        private final @NonNull Player player;
+        private final @NonNull Transaction transaction;
+        private final @NonNull Inventory inventory;
+
+        private long dirtySlots;
+        private final @Nullable ItemStack @NonNull [] oldItems;
+
+        private PendingSynchronization(
+                @NonNull Player player,
+                @NonNull Transaction transaction,
+                @NonNull Inventory inventory,
+                long dirtySlots,
+                @Nullable ItemStack @NonNull [] oldItems
+        ) {
+            this.player = player;
+            this.transaction = transaction;
+            this.inventory = inventory;
+            this.dirtySlots = dirtySlots;
+            this.oldItems = oldItems;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,42 @@
+package it.bitrule.trade.usecase;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the thread a use case must be submitted from.
+ * The {@link Kind#ASYNC} use cases only touch thread-safe state (the registries, the online players index
+ * and the messages) and may be submitted from the command worker, any work they need on the
+ * main thread is handed over explicitly.
+ * The {@link Kind#MAIN} use cases touch inventories or the world, so they must run on the thread that owns
+ * the player who submits them: the main thread, or the thread of the player's region on a region threaded server.
+ * The work they need on the other participant is handed over through the {@code TradeScheduler}.
+ * The {@link Kind#GLOBAL} use cases are submitted by the tasks that drive the trades, on the global thread
+ * (the main thread on a server that is not region threaded). They don't own any participant, so all the work
+ * on the participants is handed over through the {@code TradeScheduler}.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ThreadAffinity {
+
+    Kind value();
+
+    enum Kind {
+        /**
+         * The use case can be submitted from any thread.
+         */
+        ASYNC,
+        /**
+         * The use case must be submitted from the thread that owns the player.
+         */
+        MAIN,
+        /**
+         * The use case must be submitted from the global thread.
+         */
+        GLOBAL
+    }
+}
\ No newline at end of file
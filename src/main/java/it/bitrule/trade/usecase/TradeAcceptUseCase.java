@@ -3,25 +3,48 @@ package it.bitrule.trade.usecase;
 import it.bitrule.trade.MessageAssets;
 import it.bitrule.trade.Trade;
 import it.bitrule.trade.component.Transaction;
+import it.bitrule.trade.registry.OnlinePlayerIndex;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
+import it.bitrule.trade.scheduler.TradeScheduler;
 import lombok.NonNull;
 import org.bukkit.Bukkit;
 import org.bukkit.Sound;
 import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
 
 import java.util.UUID;
-import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.ASYNC)
 public final class TradeAcceptUseCase extends TradeUseCase {
 
+    /**
+     * Index of the online players by their name.
+     */
+    private final @NonNull OnlinePlayerIndex onlinePlayerIndex;
+    /**
+     * The scheduler used to open the trade GUI on the thread that owns each player.
+     */
+    private final @NonNull TradeScheduler scheduler;
+    /**
+     * The settlement used to give back the offered items when the transaction is discarded.
+     */
+    private final @NonNull ItemSettlement settlement;
+
     public TradeAcceptUseCase(
             @NonNull TransactionRegistry transactionRegistry,
             @NonNull RequestsRegistry requestsRegistry,
+            @NonNull OnlinePlayerIndex onlinePlayerIndex,
+            @NonNull TradeScheduler scheduler,
+            @NonNull ItemSettlement settlement,
             @NonNull Logger logger
     ) {
         super(transactionRegistry, requestsRegistry, logger);
+
+        this.onlinePlayerIndex = onlinePlayerIndex;
+        this.scheduler = scheduler;
+        this.settlement = settlement;
     }
 
     /**
@@ -48,7 +71,7 @@ public final class TradeAcceptUseCase extends TradeUseCase {
         }
 
         // Check if the receptor is online.
-        Player receptor = Bukkit.getPlayerExact(receptorName);
+        Player receptor = this.onlinePlayerIndex.findExact(receptorName);
         if (receptor == null || !receptor.isConnected()) {
             sender.sendMessage(MessageAssets.PLAYER_NOT_ONLINE.build(receptorName));
             return;
@@ -60,18 +83,15 @@ public final class TradeAcceptUseCase extends TradeUseCase {
             return;
         }
 
-            // Check if the sender has a pending trade request with the receptor.
+        // Check if the sender has a pending trade request with the receptor.
         if (!this.requestsRegistry.has(receptor.getUniqueId(), sender.getUniqueId())) {
             sender.sendMessage(MessageAssets.NO_REQUEST_FOUND.build(receptorName));
             return;
         }
 
         // Before creating a transaction, clean up the request registry for the sender and receptor.
-        this.requestsRegistry.clearReceptors(sender.getUniqueId());
-        this.requestsRegistry.clearReceptors(receptor.getUniqueId());
-
-        this.requestsRegistry.clearSent(receptor.getUniqueId());
-        this.requestsRegistry.clearSent(sender.getUniqueId());
+        this.requestsRegistry.clear(sender.getUniqueId());
+        this.requestsRegistry.clear(receptor.getUniqueId());
 
         // Note: The logic about transaction when accepting a trade
         // the sender id at the transaction is who sent the request,
@@ -84,18 +104,58 @@ public final class TradeAcceptUseCase extends TradeUseCase {
         receptor.sendMessage(MessageAssets.REQUEST_WAS_ACCEPTED.build(sender.getName()));
         sender.sendMessage(MessageAssets.REQUEST_ACCEPTED.build(receptor.getName()));
 
-        Consumer<Player> playSound = player -> player.playSound(
+        // The sounds and the trade GUI need the thread that owns each player.
+        this.scheduler.execute(sender, () -> this.open(sender, receptor, transaction), () -> this.discard(transaction));
+        this.scheduler.execute(receptor, () -> this.open(receptor, sender, transaction), () -> this.discard(transaction));
+    }
+
+    /**
+     * Opens the trade GUI for a player.
+     * If any of them left before the GUI was opened, the transaction is discarded.
+     * @param player the player whose trade GUI is opened
+     * @param partner the other participant of the trade
+     * @param transaction the transaction created for the trade
+     */
+    private void open(@NonNull Player player, @NonNull Player partner, @NonNull Transaction transaction) {
+        if (transaction.isCancelled()) return;
+
+        if (!player.isConnected() || !partner.isConnected()) {
+            this.discard(transaction);
+            return;
+        }
+
+        // Play sound for the player to indicate the trade acceptance.
+        player.playSound(
                 player.getLocation().clone(),
                 Sound.ENTITY_PLAYER_LEVELUP,
                 0.6f,
                 1.0f
         );
 
-        // Play sound for both sender and receptor to indicate the trade acceptance.
-        playSound.accept(receptor);
-        playSound.accept(sender);
+        Trade.showGui(player, transaction, partner.getName());
+    }
+
+    /**
+     * Discards a transaction whose trade GUI could not be opened for both players.
+     * The trade GUI of a player who already opened it is closed, which gives back any offered items.
+     * @param transaction the transaction created for the trade
+     */
+    private void discard(@NonNull Transaction transaction) {
+        if (!transaction.tryCancel()) return;
+
+        this.transactionRegistry.unregister(transaction);
 
-        Trade.showGui(sender, transaction, receptor.getName());
-        Trade.showGui(receptor, transaction, sender.getName());
+        for (UUID participantId : new UUID[]{transaction.getSender(), transaction.getReceptor()}) {
+            Player participant = Bukkit.getPlayer(participantId);
+            Inventory inventory = transaction.getInventory(participantId);
+            if (participant == null || inventory == null) continue;
+
+            this.scheduler.execute(participant, () -> {
+                if (participant.getOpenInventory().getTopInventory() != inventory) return;
+
+                this.settlement.giveBack(participant, inventory, Trade.VIEWER_SLOT);
+                participant.closeInventory();
+            }, null);
+        }
     }
 }
\ No newline at end of file
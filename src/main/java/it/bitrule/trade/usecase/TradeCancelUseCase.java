@@ -1,29 +1,49 @@
 package it.bitrule.trade.usecase;
 
-import dev.triumphteam.gui.guis.BaseGui;
 import it.bitrule.trade.MessageAssets;
 import it.bitrule.trade.Trade;
 import it.bitrule.trade.component.Transaction;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
+import it.bitrule.trade.scheduler.TradeScheduler;
+import it.bitrule.trade.task.CountdownDriver;
 import lombok.NonNull;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
-import org.bukkit.inventory.ItemStack;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.util.UUID;
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.MAIN)
 public final class TradeCancelUseCase extends TradeUseCase {
 
+    /**
+     * The scheduler used to give back the items of the recipient on their own thread.
+     */
+    private final @NonNull TradeScheduler scheduler;
+    /**
+     * The driver of the countdowns, the countdown of the cancelled transaction is stopped.
+     */
+    private final @NonNull CountdownDriver countdownDriver;
+    /**
+     * The settlement used to give back the offered items at once.
+     */
+    private final @NonNull ItemSettlement settlement;
+
     public TradeCancelUseCase(
             @NonNull TransactionRegistry transactionRegistry,
             @NonNull RequestsRegistry requestsRegistry,
+            @NonNull TradeScheduler scheduler,
+            @NonNull CountdownDriver countdownDriver,
+            @NonNull ItemSettlement settlement,
             @NonNull Logger logger
     ) {
         super(transactionRegistry, requestsRegistry, logger);
+
+        this.scheduler = scheduler;
+        this.countdownDriver = countdownDriver;
+        this.settlement = settlement;
     }
 
     /**
@@ -35,6 +55,7 @@ public final class TradeCancelUseCase extends TradeUseCase {
      * gives back the items to the players involved in the trade,
      * closes the inventory of the recipient player,
      * and sends messages to both players involved in the trade to notify them that the trade has been cancelled.
+     * The items of the recipient are handed over to the thread that owns the recipient.
      * @param player the player who is cancelling the trade
      * @param closingInventory the inventory that is being closed, usually the player's inventory
      */
@@ -43,24 +64,17 @@ public final class TradeCancelUseCase extends TradeUseCase {
         Transaction transaction = this.transactionRegistry.findByPlayer(player.getUniqueId());
         if (transaction == null) return;
 
-        // If the transaction is already ended, there's nothing to do.
-        if (transaction.isEnded()) return;
-
-        // If the transaction is already cancelled, there's nothing to do.
-        // this helps to prevent cancelling a transaction multiple times.
-        if (transaction.isCancelled()) return;
-
-        this.transactionRegistry.unregister(transaction.getId());
-
-        transaction.setCancelled(true);
+        // If the transaction is already ended or cancelled, there's nothing to do.
+        // this helps to prevent cancelling a transaction multiple times,
+        // or cancelling it while the other participant is ending it on another thread.
+        if (!transaction.tryCancel()) return;
 
-        transaction.setReceptorReady(false);
-        transaction.setSenderReady(false);
+        this.transactionRegistry.unregister(transaction);
 
         // After marking the transaction as cancelled and resetting the done flags,
         // we need to give back the items to the players involved in the trade.
         // Then we can remove the transaction from the registry.
-        giveBackItems(player, closingInventory);
+        this.settlement.giveBack(player, closingInventory, Trade.VIEWER_SLOT);
 
         // Search the id of the other player involved in the trade.
         // If the player is the sender, the recipient is the receptor, and vice versa.
@@ -71,14 +85,17 @@ public final class TradeCancelUseCase extends TradeUseCase {
             recipientId = transaction.getSender();
         }
 
-        BukkitRunnable bukkitRunnable = transaction.getBukkitRunnable();
-        boolean cancelledRunnable = bukkitRunnable != null && !bukkitRunnable.isCancelled();
-        if (cancelledRunnable) bukkitRunnable.cancel();
+        boolean cancelledCountdown = this.countdownDriver.stop(transaction);
 
         Player recipient = Bukkit.getPlayer(recipientId);
-        if (recipient == null || !recipient.isConnected()) return;
+        if (recipient == null || !recipient.isConnected()) {
+            TradeReadyUseCase.invalidateReadyItems(player.getName());
+            return;
+        }
+
+        TradeReadyUseCase.invalidateReadyItems(player.getName(), recipient.getName());
 
-        if (cancelledRunnable)
+        if (cancelledCountdown)
             this.logger.warning("[Receptor - Trade] Cancelled the countdown for the trade between " + player.getName() + " and " + recipient.getName());
 
         player.sendMessage(
@@ -93,28 +110,23 @@ public final class TradeCancelUseCase extends TradeUseCase {
                 )
         );
 
-        // If the recipient is viewing a trade GUI, we need to close it.
+        // If the recipient is viewing the trade GUI, we need to close it.
         // but first we need to give back the items to the recipient.
-        Inventory recipientInventory = recipient.getOpenInventory().getTopInventory();
-        if (!(recipientInventory.getHolder() instanceof BaseGui)) return;
-
-        giveBackItems(recipient, recipientInventory);
-
-        if (recipientInventory.close() == 0) {
-            this.logger.warning("[Receptor - Trade] Unexpected behavior... Nobody was viewing the inventory of " + recipient.getName());
-        } else {
-            this.logger.info("[Receptor - Trade] Closed inventory of " + recipient.getName() + " after cancelling the trade.");
-        }
-    }
-
-    public static void giveBackItems(@NonNull Player player, @NonNull Inventory inventory) {
-        for (int slot : Trade.VIEWER_SLOT) {
-            ItemStack itemStack = inventory.getItem(slot);
-            if (itemStack == null || itemStack.isEmpty()) continue;
-
-            player.getInventory()
-                    .addItem(itemStack)
-                    .forEach((slotIndex, dropItemStack) -> player.getWorld().dropItemNaturally(player.getLocation(), dropItemStack));
-        }
+        Inventory recipientInventory = transaction.getInventory(recipientId);
+        if (recipientInventory == null) return;
+
+        this.scheduler.execute(recipient, () -> {
+            this.settlement.giveBack(recipient, recipientInventory, Trade.VIEWER_SLOT);
+
+            if (recipientInventory.close() == 0) {
+                this.logger.warning("[Receptor - Trade] Unexpected behavior... Nobody was viewing the inventory of " + recipient.getName());
+            } else {
+                this.logger.info("[Receptor - Trade] Closed inventory of " + recipient.getName() + " after cancelling the trade.");
+            }
+        }, () -> {
+            // Nobody owns the GUI anymore, the items are kept for the recipient.
+            this.logger.warning("[Receptor - Trade] " + recipient.getName() + " left before getting back the items of the cancelled trade " + transaction.getId() + ", they are kept in the mailbox");
+            this.settlement.recover(recipientId, recipientInventory, Trade.VIEWER_SLOT);
+        });
     }
 }
\ No newline at end of file
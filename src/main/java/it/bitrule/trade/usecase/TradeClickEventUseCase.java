@@ -5,25 +5,26 @@ import it.bitrule.trade.component.Transaction;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
 import lombok.NonNull;
-import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryAction;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Arrays;
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.MAIN)
 public final class TradeClickEventUseCase extends SynchronizeUseCase {
 
     public TradeClickEventUseCase(
             @NonNull TransactionRegistry transactionRegistry,
             @NonNull RequestsRegistry requestsRegistry,
+            @NonNull SynchronizeCoalescer coalescer,
             @NonNull Logger logger
     ) {
-        super(transactionRegistry, requestsRegistry, logger);
+        super(transactionRegistry, requestsRegistry, coalescer, logger);
     }
 
     public boolean submit(@NonNull Player player, @NonNull InventoryClickEvent clickEvent) {
@@ -32,12 +33,16 @@ public final class TradeClickEventUseCase extends SynchronizeUseCase {
             throw new IllegalStateException("Trying to handle a click outside of an inventory.");
         }
 
+        // Collecting to the cursor takes items from any slot of both inventories,
+        // including the mirror slots, so it's never allowed while trading.
+        if (clickEvent.getAction() == InventoryAction.COLLECT_TO_CURSOR) return true;
+
         if (clickedInventory.getType().equals(InventoryType.PLAYER) && !clickEvent.isShiftClick()) return false;
 
         boolean shiftClick = clickEvent.isShiftClick() && clickedInventory.getType().equals(InventoryType.PLAYER);
 
         // Cancel the event if the clicked slot is not part of the viewer slots
-        if (!shiftClick && Arrays.stream(Trade.VIEWER_SLOT).noneMatch(slot -> slot == clickEvent.getSlot())) return true;
+        if (!shiftClick && !Trade.isViewerSlot(clickEvent.getSlot())) return true;
 
         Transaction transaction = this.transactionRegistry.findByPlayer(player.getUniqueId());
         if (transaction == null) {
@@ -48,51 +53,61 @@ public final class TradeClickEventUseCase extends SynchronizeUseCase {
             throw new IllegalStateException("Transaction for player " + player.getName() + " has been cancelled.");
         }
 
-        if (transaction.getClickedValue(player.getUniqueId())) return true;
         if (transaction.getReadyState(player.getUniqueId())) return true;
 
         if (transaction.isEnded()) return true;
 
-        transaction.setClickedValue(player.getUniqueId(), true);
-
         Inventory destinationInventory = clickEvent.getView().getTopInventory();
 
-        // If is a shift click, we handle the item stack movement
-        // and set the current item to the result of that operation.
-        // Otherwise, we just let the click event proceed normally.
+        // This will help to compare the difference of the touched slots before and after the click
+        // to know the items that were moved or changed.
+        // If is a shift click, we handle the item stack movement and keep the old items of
+        // the slots it touches. Otherwise, the click only touches the clicked slot
+        // and we just let the click event proceed normally.
+        long dirtySlots;
+        ItemStack[] oldItems;
         if (shiftClick) {
-            clickEvent.setCurrentItem(this.handleShiftClick(
-                    destinationInventory,
-                    clickEvent.getCurrentItem()
-            ));
+            oldItems = new ItemStack[destinationInventory.getSize()];
 
+            ItemStack itemStack = clickEvent.getCurrentItem();
+            dirtySlots = this.handleShiftClick(destinationInventory, itemStack, oldItems);
+
+            clickEvent.setCurrentItem(itemStack == null || itemStack.getAmount() <= 0 ? null : itemStack);
             clickEvent.setCancelled(true);
+        } else {
+            dirtySlots = 1L << clickEvent.getSlot();
+            oldItems = snapshot(destinationInventory, dirtySlots);
         }
 
-        // This will help to compare the difference of contents before and after the click
-        // to know the items that were moved or changed.
-        ItemStack[] oldContents = destinationInventory.getContents();
-        Bukkit.getScheduler().runTask(
-                Trade.getPlugin(Trade.class),
-                () -> {
-                    // Synchronize the inventories of the player and the transaction
-                    this.synchronize(player, transaction, oldContents, destinationInventory);
-
-                    transaction.setClickedValue(player.getUniqueId(), false);
-                }
-        );
+        // The touched slots are synchronized at the end of the tick
+        this.coalescer.mark(player, transaction, destinationInventory, dirtySlots, oldItems);
 
         return false;
     }
 
-    private @Nullable ItemStack handleShiftClick(@NonNull Inventory destinationInventory, @Nullable ItemStack itemStack) {
-        if (itemStack == null || itemStack.isEmpty()) return null;
+    /**
+     * Moves the shift clicked item stack into the viewer slots.
+     * The amount of the item stack is reduced by the amount that was moved.
+     * @param destinationInventory the inventory of the trade GUI
+     * @param itemStack the shift clicked item stack
+     * @param oldItems the array where the old items of the touched slots are copied, indexed by slot
+     * @return the bitmask of the slots that were touched
+     */
+    private long handleShiftClick(
+            @NonNull Inventory destinationInventory,
+            @Nullable ItemStack itemStack,
+            @Nullable ItemStack @NonNull [] oldItems
+    ) {
+        if (itemStack == null || itemStack.isEmpty()) return 0L;
 
+        long dirtySlots = 0L;
         for (int viewerSlot : Trade.VIEWER_SLOT) {
             ItemStack itemStackAt = destinationInventory.getItem(viewerSlot);
             if (itemStackAt == null || itemStackAt.isEmpty()) {
-                destinationInventory.setItem(viewerSlot, itemStack);
-                return null; // Item has been added to an empty slot
+                destinationInventory.setItem(viewerSlot, itemStack.clone());
+                itemStack.setAmount(0);
+
+                return dirtySlots | (1L << viewerSlot); // Item has been added to an empty slot
             }
 
             if (!itemStackAt.isSimilar(itemStack)) continue;
@@ -100,16 +115,19 @@ public final class TradeClickEventUseCase extends SynchronizeUseCase {
             int spaceLeft = itemStackAt.getMaxStackSize() - itemStackAt.getAmount();
             if (spaceLeft <= 0) continue;
 
+            oldItems[viewerSlot] = itemStackAt.clone();
+            dirtySlots |= 1L << viewerSlot;
+
             int toAdd = Math.min(spaceLeft, itemStack.getAmount());
             itemStackAt.setAmount(itemStackAt.getAmount() + toAdd);
             itemStack.setAmount(itemStack.getAmount() - toAdd);
 
             destinationInventory.setItem(viewerSlot, itemStackAt);
 
-            if (itemStack.getAmount() <= 0) return null; // All items have been added
+            if (itemStack.getAmount() <= 0) return dirtySlots; // All items have been added
         }
 
         // If we reach here, it means there are still items left to add
-        return itemStack; // Return the remaining items that could not be added
+        return dirtySlots;
     }
 }
\ No newline at end of file
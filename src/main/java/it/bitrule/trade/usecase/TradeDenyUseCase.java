@@ -1,22 +1,31 @@
 package it.bitrule.trade.usecase;
 
 import it.bitrule.trade.MessageAssets;
+import it.bitrule.trade.registry.OnlinePlayerIndex;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
 import lombok.NonNull;
-import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.ASYNC)
 public final class TradeDenyUseCase extends TradeUseCase {
 
+    /**
+     * Index of the online players by their name.
+     */
+    private final @NonNull OnlinePlayerIndex onlinePlayerIndex;
+
     public TradeDenyUseCase(
             @NonNull TransactionRegistry transactionRegistry,
             @NonNull RequestsRegistry requestsRegistry,
+            @NonNull OnlinePlayerIndex onlinePlayerIndex,
             @NonNull Logger logger
     ) {
         super(transactionRegistry, requestsRegistry, logger);
+
+        this.onlinePlayerIndex = onlinePlayerIndex;
     }
 
     public void submit(@NonNull Player sender, @NonNull String recipientName) {
@@ -25,7 +34,7 @@ public final class TradeDenyUseCase extends TradeUseCase {
             return;
         }
 
-        Player recipient = Bukkit.getPlayer(recipientName);
+        Player recipient = this.onlinePlayerIndex.findExact(recipientName);
         if (recipient == null || !recipient.isOnline()) {
             sender.sendMessage(MessageAssets.PLAYER_NOT_ONLINE.build(recipientName));
             return;
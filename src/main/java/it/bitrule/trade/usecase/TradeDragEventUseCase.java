@@ -5,20 +5,23 @@ import it.bitrule.trade.component.Transaction;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
 import lombok.NonNull;
-import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
-import org.bukkit.inventory.ItemStack;
 
-import java.util.Arrays;
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.MAIN)
 public final class TradeDragEventUseCase extends SynchronizeUseCase {
 
-    public TradeDragEventUseCase(@NonNull TransactionRegistry transactionRegistry, @NonNull RequestsRegistry requestsRegistry, @NonNull Logger logger) {
-        super(transactionRegistry, requestsRegistry, logger);
+    public TradeDragEventUseCase(
+            @NonNull TransactionRegistry transactionRegistry,
+            @NonNull RequestsRegistry requestsRegistry,
+            @NonNull SynchronizeCoalescer coalescer,
+            @NonNull Logger logger
+    ) {
+        super(transactionRegistry, requestsRegistry, coalescer, logger);
     }
 
     public boolean submit(@NonNull Player player, @NonNull InventoryDragEvent dragEvent) {
@@ -31,7 +34,6 @@ public final class TradeDragEventUseCase extends SynchronizeUseCase {
             throw new IllegalStateException("Transaction for player " + player.getName() + " has been cancelled.");
         }
 
-        if (transaction.getClickedValue(player.getUniqueId())) return true;
         if (transaction.getReadyState(player.getUniqueId())) return true;
 
         if (transaction.isEnded()) return true;
@@ -39,29 +41,19 @@ public final class TradeDragEventUseCase extends SynchronizeUseCase {
         // If the drag event contains any raw slots that are not part of the trade GUI,
         // we cancel the drag event to prevent items from being moved in the trade GUI.
         // We also check if the raw slot is not part of the viewer slots.
+        // The viewer slots of the drag are the only slots that need to be synchronized.
+        long dirtySlots = 0L;
         for (int rawSlot : dragEvent.getRawSlots()) {
             Inventory inventory = dragEvent.getView().getInventory(rawSlot);
             if (inventory == null || inventory.getType().equals(InventoryType.PLAYER)) continue;
-            if (Arrays.stream(Trade.VIEWER_SLOT).anyMatch(slot -> slot == rawSlot)) continue;
+            if (!Trade.isViewerSlot(rawSlot)) return true;
 
-            return true;
+            dirtySlots |= 1L << rawSlot;
         }
 
-        transaction.setClickedValue(player.getUniqueId(), true);
-
+        // The touched slots are synchronized at the end of the tick
         Inventory inventory = dragEvent.getInventory();
-        ItemStack[] oldContents = inventory.getContents();
-
-        // Synchronize the inventories of the player and the transaction
-        Bukkit.getScheduler().runTask(
-                Trade.getPlugin(Trade.class),
-                () -> {
-                    // Synchronize the inventories of the player and the transaction
-                    this.synchronize(player, transaction, oldContents, inventory);
-
-                    transaction.setClickedValue(player.getUniqueId(), false);
-                }
-        );
+        this.coalescer.mark(player, transaction, inventory, dirtySlots, snapshot(inventory, dirtySlots));
 
         return false;
     }
@@ -1,39 +1,73 @@
 package it.bitrule.trade.usecase;
 
-import com.mongodb.client.MongoCollection;
 import it.bitrule.trade.MessageAssets;
 import it.bitrule.trade.Trade;
+import it.bitrule.trade.component.ItemSnapshot;
+import it.bitrule.trade.component.ItemSnapshotCodec;
 import it.bitrule.trade.component.Transaction;
+import it.bitrule.trade.component.TransactionLog;
+import it.bitrule.trade.persistence.TradeHistory;
+import it.bitrule.trade.persistence.TradeLogWriter;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
+import it.bitrule.trade.scheduler.TradeScheduler;
 import lombok.NonNull;
 import org.bson.Document;
-import org.bukkit.Bukkit;
+import org.bson.types.Binary;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
-import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.inventory.ItemStack;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.GLOBAL)
 public final class TradeEndUseCase extends TradeUseCase {
 
-    private final @NonNull MongoCollection<Document> logsCollection;
+    /**
+     * The write-behind pipeline where the logs of the finished transactions are queued.
+     */
+    private final @NonNull TradeLogWriter logWriter;
+    /**
+     * The scheduler used to move the items on the thread that owns each participant.
+     */
+    private final @NonNull TradeScheduler scheduler;
+    /**
+     * The settlement used to give the received items to each participant at once.
+     */
+    private final @NonNull ItemSettlement settlement;
 
     public TradeEndUseCase(
-            @NonNull MongoCollection<Document> logsCollection,
+            @NonNull TradeLogWriter logWriter,
             @NonNull TransactionRegistry transactionRegistry,
             @NonNull RequestsRegistry requestsRegistry,
+            @NonNull TradeScheduler scheduler,
+            @NonNull ItemSettlement settlement,
             @NonNull Logger logger
     ) {
         super(transactionRegistry, requestsRegistry, logger);
 
-        this.logsCollection = logsCollection;
+        this.logWriter = logWriter;
+        this.scheduler = scheduler;
+        this.settlement = settlement;
     }
 
+    /**
+     * Ends the transaction and exchanges the offered items.
+     * The participants may be owned by different threads, so the items are exchanged through an escrow:
+     * first each participant hands over the items offered in their own trade GUI, on their own thread,
+     * and once both sides are in the escrow, each participant receives the items of the other one, again on their own thread.
+     * @param participants the players who are participating in the trade
+     * @param transactionId the unique identifier of the trade transaction
+     */
     public void submit(@NonNull Player[] participants, @NonNull UUID transactionId) {
-        final Transaction transaction = this.transactionRegistry.findById(transactionId);
-        if (transaction == null) {
+        // The transaction is looked up by its first participant, and must be the one that was scheduled to end.
+        final Transaction transaction = this.transactionRegistry.findByPlayer(participants[0].getUniqueId());
+        if (transaction == null || !transaction.getId().equals(transactionId)) {
             throw new IllegalStateException("No transaction found with ID: " + transactionId);
         }
 
@@ -55,6 +89,18 @@ public final class TradeEndUseCase extends TradeUseCase {
             throw new IllegalStateException("Participant " + secondParticipant.getName() + " is not connected.");
         }
 
+        Inventory firstInventory = transaction.getInventory(firstParticipant.getUniqueId());
+        Inventory secondInventory = transaction.getInventory(secondParticipant.getUniqueId());
+        if (firstInventory == null || secondInventory == null) {
+            throw new IllegalStateException("Transaction with ID " + transactionId + " has not shown the trade GUI to both participants.");
+        }
+
+        // A participant may be cancelling the transaction or changing their ready state on another thread,
+        // if the countdown was stopped in the meantime, the transaction stays open.
+        if (!transaction.tryCommit()) return;
+
+        this.transactionRegistry.unregister(transaction);
+
         firstParticipant.sendMessage(MessageAssets.TRANSACTION_ENDED.build(
                 secondParticipant.getName()
         ));
@@ -62,30 +108,129 @@ public final class TradeEndUseCase extends TradeUseCase {
                 firstParticipant.getName()
         ));
 
-        Inventory firstInventory = TradeReadyUseCase.INVENTORY_WRAPPER.apply(firstParticipant);
-        Inventory secondInventory = TradeReadyUseCase.INVENTORY_WRAPPER.apply(secondParticipant);
+        TradeReadyUseCase.invalidateReadyItems(firstParticipant.getName(), secondParticipant.getName());
 
-        TradeCancelUseCase.giveBackItems(firstParticipant, secondInventory);
-        TradeCancelUseCase.giveBackItems(secondParticipant, firstInventory);
+        // The log of the transaction is written once both sides are in the escrow, with the snapshot of the offered items.
+        Escrow escrow = new Escrow(transaction, participants, new Inventory[]{firstInventory, secondInventory});
+        for (int i = 0; i < participants.length; i++) {
+            int side = i;
+            this.scheduler.execute(participants[side], () -> escrow.collect(side), () -> escrow.collect(side));
+        }
+    }
 
-        this.transactionRegistry.unregister(transactionId);
-        transaction.setEnded(true);
+    /**
+     * Holds the items offered by both participants while they are exchanged.
+     * Each side is written by the thread that owns its participant, and the last side
+     * to arrive hands the items over, the counter publishes both sides to that thread.
+     */
+    private final class Escrow {
+
+        private final @NonNull Transaction transaction;
+        private final @NonNull Player @NonNull [] participants;
+        private final @NonNull Inventory @NonNull [] inventories;
+
+        private final @NonNull ItemStack @NonNull [][] offered;
+        private final @NonNull ItemSnapshot @NonNull [] snapshots;
+        private final @NonNull AtomicInteger pending;
+
+        private Escrow(@NonNull Transaction transaction, @NonNull Player @NonNull [] participants, @NonNull Inventory @NonNull [] inventories) {
+            this.transaction = transaction;
+            this.participants = participants;
+            this.inventories = inventories;
+
+            this.offered = new ItemStack[participants.length][];
+            this.snapshots = new ItemSnapshot[participants.length];
+            this.pending = new AtomicInteger(participants.length);
+        }
 
-        if (firstInventory.close() == 0) {
-            this.logger.warning("Failed to close inventory for player: " + firstParticipant.getName());
+        /**
+         * Takes the items offered by a participant out of their trade GUI and closes it.
+         * If the participant already left, nobody owns the GUI anymore, so the items are taken anyway.
+         * @param side the index of the participant
+         */
+        private void collect(int side) {
+            Inventory inventory = this.inventories[side];
+
+            List<Integer> slots = new ArrayList<>(Trade.VIEWER_SLOT.length);
+            List<ItemStack> itemStacks = new ArrayList<>(Trade.VIEWER_SLOT.length);
+            for (int slot : Trade.VIEWER_SLOT) {
+                ItemStack itemStack = inventory.getItem(slot);
+                if (itemStack == null || itemStack.isEmpty()) continue;
+
+                slots.add(slot);
+                itemStacks.add(itemStack.clone());
+                inventory.setItem(slot, null);
+            }
+
+            // The items are serialized here, on the thread that owns them, the rest of the encoding runs on the log writer thread.
+            this.offered[side] = itemStacks.toArray(new ItemStack[0]);
+            this.snapshots[side] = ItemSnapshot.capture(slots, itemStacks);
+
+            if (inventory.close() == 0) {
+                TradeEndUseCase.this.logger.warning("Failed to close inventory for player: " + this.participants[side].getName());
+            }
+
+            if (this.pending.decrementAndGet() > 0) return;
+
+            this.transaction.markEnded();
+            this.persist();
+
+            // Both sides are in the escrow, each participant receives the items of the other one.
+            for (int i = 0; i < this.participants.length; i++) {
+                Player participant = this.participants[i];
+                ItemStack[] received = this.offered[i == 0 ? 1 : 0];
+
+                TradeEndUseCase.this.scheduler.execute(
+                        participant,
+                        () -> TradeEndUseCase.this.settlement.settle(participant, received),
+                        () -> this.lost(participant, received)
+                );
+            }
         }
 
-        if (secondInventory.close() == 0) {
-            this.logger.warning("Failed to close inventory for player: " + secondParticipant.getName());
+        /**
+         * Queues the log of the transaction.
+         * The document is rendered and written in batches by the log writer thread.
+         * The changes that were spilled before are stored as parts, linked by the transaction id.
+         */
+        private void persist() {
+            TransactionLog.Chunk chunk = this.transaction.getLogs().drain();
+            UUID transactionId = this.transaction.getId();
+            UUID sender = this.transaction.getSender();
+            UUID receptor = this.transaction.getReceptor();
+            Date endedAt = new Date();
+
+            // The offered items are stored as the sender's side followed by the receptor's side.
+            boolean senderFirst = this.participants[0].getUniqueId().equals(sender);
+            ItemSnapshot senderSnapshot = this.snapshots[senderFirst ? 0 : 1];
+            ItemSnapshot receptorSnapshot = this.snapshots[senderFirst ? 1 : 0];
+
+            // The names are stored with the trade, so the history never has to look them up.
+            String senderName = this.participants[senderFirst ? 0 : 1].getName();
+            String receptorName = this.participants[senderFirst ? 1 : 0].getName();
+
+            TradeEndUseCase.this.logWriter.submit(transactionId.toString(), () -> new Document("_id", transactionId.toString())
+                    .append("sender_id", sender.toString())
+                    .append("receptor_id", receptor.toString())
+                    .append("sender_name", senderName)
+                    .append("receptor_name", receptorName)
+                    .append(TradeHistory.ENDED_AT_FIELD, endedAt)
+                    .append("items_log", chunk.asDocuments(sender, receptor))
+                    .append("log_parts", chunk.part())
+                    .append("offered_items", new Binary(ItemSnapshotCodec.encode(senderSnapshot, receptorSnapshot)))
+            );
         }
 
-        Bukkit.getScheduler().runTaskAsynchronously(
-                JavaPlugin.getPlugin(Trade.class),
-                () -> this.logsCollection.insertOne(new Document("_id", transactionId.toString())
-                        .append("sender_id", transaction.getSender().toString())
-                        .append("receptor_id", transaction.getReceptor().toString())
-                        .append("items_log", transaction.getLogs())
-                )
-        );
+        /**
+         * Keeps the received items of a participant who left before receiving them.
+         * @param participant the participant who left
+         * @param itemStacks the items the participant didn't receive
+         */
+        private void lost(@NonNull Player participant, @NonNull ItemStack @NonNull [] itemStacks) {
+            if (itemStacks.length == 0) return;
+
+            TradeEndUseCase.this.logger.warning("[Trade " + this.transaction.getId() + "] " + participant.getName() + " left before receiving " + itemStacks.length + " stacks, they are kept in the mailbox");
+            TradeEndUseCase.this.settlement.recover(participant.getUniqueId(), itemStacks);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,240 @@
+package it.bitrule.trade.usecase;
+
+import it.bitrule.trade.MessageAssets;
+import it.bitrule.trade.component.ItemSnapshot;
+import it.bitrule.trade.component.ItemSnapshotCodec;
+import it.bitrule.trade.persistence.TradeHistory;
+import it.bitrule.trade.registry.RequestsRegistry;
+import it.bitrule.trade.registry.TransactionRegistry;
+import it.bitrule.trade.scheduler.TradeScheduler;
+import lombok.NonNull;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.JoinConfiguration;
+import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.event.HoverEvent;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+@ThreadAffinity(ThreadAffinity.Kind.ASYNC)
+public final class TradeHistoryUseCase extends TradeUseCase {
+
+    /**
+     * The permission needed to look up the trades.
+     */
+    public static final @NonNull String PERMISSION = "trade.history";
+
+    private static final @NonNull DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * The read side of the trade logs.
+     */
+    private final @NonNull TradeHistory history;
+    /**
+     * The scheduler used to restore the offered items on the thread that owns the staff member.
+     */
+    private final @NonNull TradeScheduler scheduler;
+
+    public TradeHistoryUseCase(
+            @NonNull TransactionRegistry transactionRegistry,
+            @NonNull RequestsRegistry requestsRegistry,
+            @NonNull TradeHistory history,
+            @NonNull TradeScheduler scheduler,
+            @NonNull Logger logger
+    ) {
+        super(transactionRegistry, requestsRegistry, logger);
+
+        this.history = history;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Shows a page of the trades of a player.
+     * @param sender the staff member who runs the command
+     * @param playerName the name of the player whose trades are shown
+     * @param cursorToken the cursor of the page, or null for the first page
+     */
+    public void submitHistory(@NonNull Player sender, @NonNull String playerName, @Nullable String cursorToken) {
+        if (!sender.hasPermission(PERMISSION)) {
+            sender.sendMessage(MessageAssets.NO_PERMISSION.build());
+            return;
+        }
+
+        if (playerName.isEmpty()) {
+            sender.sendMessage(MessageAssets.HISTORY_COMMAND_USAGE.build());
+            return;
+        }
+
+        // Only the players cached by the server are looked up, so the command never waits on the Mojang API.
+        OfflinePlayer target = Bukkit.getOfflinePlayerIfCached(playerName);
+        if (target == null) {
+            sender.sendMessage(MessageAssets.PLAYER_NOT_FOUND.build(playerName));
+            return;
+        }
+
+        TradeHistory.Cursor cursor = null;
+        if (cursorToken != null) {
+            cursor = TradeHistory.Cursor.decode(cursorToken);
+
+            if (cursor == null) {
+                sender.sendMessage(MessageAssets.HISTORY_INVALID_PAGE.build());
+                return;
+            }
+        }
+
+        String targetName = target.getName() != null ? target.getName() : playerName;
+        boolean firstPage = cursor == null;
+
+        this.history.history(target.getUniqueId(), cursor, page -> {
+            if (page == null) {
+                sender.sendMessage(MessageAssets.HISTORY_FAILED.build());
+                return;
+            }
+
+            if (page.documents().isEmpty()) {
+                sender.sendMessage(firstPage ? MessageAssets.HISTORY_EMPTY.build(targetName) : MessageAssets.HISTORY_INVALID_PAGE.build());
+                return;
+            }
+
+            List<Component> lines = new ArrayList<>(page.documents().size() + 2);
+            lines.add(MessageAssets.HISTORY_HEADER.build(targetName));
+
+            for (Document document : page.documents()) {
+                String transactionId = document.getString("_id");
+
+                lines.add(MessageAssets.HISTORY_ENTRY.build(
+                        formatDate(document),
+                        nameOf(document, "sender"),
+                        nameOf(document, "receptor"),
+                        MessageAssets.internal("history_lookup_prompt")
+                                .hoverEvent(HoverEvent.showText(Component.text(transactionId)))
+                                .clickEvent(ClickEvent.runCommand("/trade lookup " + transactionId))
+                ));
+            }
+
+            TradeHistory.Cursor next = page.next();
+            if (next != null) {
+                lines.add(MessageAssets.internal("history_next_page")
+                        .clickEvent(ClickEvent.runCommand("/trade history " + targetName + " " + next.encode()))
+                );
+            }
+
+            sender.sendMessage(Component.join(JoinConfiguration.newlines(), lines));
+        });
+    }
+
+    /**
+     * Shows a trade, with the items offered by each side.
+     * @param sender the staff member who runs the command
+     * @param transactionIdString the id of the trade
+     */
+    public void submitLookup(@NonNull Player sender, @NonNull String transactionIdString) {
+        if (!sender.hasPermission(PERMISSION)) {
+            sender.sendMessage(MessageAssets.NO_PERMISSION.build());
+            return;
+        }
+
+        if (transactionIdString.isEmpty()) {
+            sender.sendMessage(MessageAssets.HISTORY_COMMAND_USAGE.build());
+            return;
+        }
+
+        UUID transactionId;
+        try {
+            transactionId = UUID.fromString(transactionIdString);
+        } catch (IllegalArgumentException ex) {
+            sender.sendMessage(MessageAssets.LOOKUP_NOT_FOUND.build(transactionIdString));
+            return;
+        }
+
+        this.history.lookup(transactionId, page -> {
+            if (page == null) {
+                sender.sendMessage(MessageAssets.HISTORY_FAILED.build());
+                return;
+            }
+
+            if (page.documents().isEmpty()) {
+                sender.sendMessage(MessageAssets.LOOKUP_NOT_FOUND.build(transactionIdString));
+                return;
+            }
+
+            Document document = page.documents().get(0);
+            String senderName = nameOf(document, "sender");
+            String receptorName = nameOf(document, "receptor");
+
+            Component header = Component.join(JoinConfiguration.newlines(), MessageAssets.LOOKUP_HEADER.buildMany(
+                    transactionIdString,
+                    formatDate(document),
+                    senderName,
+                    receptorName
+            ));
+
+            Binary offeredItems = document.get("offered_items", Binary.class);
+            if (offeredItems == null) {
+                sender.sendMessage(header);
+                return;
+            }
+
+            // The items are restored on the thread that owns the staff member, the server data is needed to read them.
+            ItemSnapshot[] snapshots = ItemSnapshotCodec.decode(offeredItems.getData());
+            this.scheduler.execute(sender, () -> sender.sendMessage(Component.join(
+                    JoinConfiguration.newlines(),
+                    header,
+                    MessageAssets.LOOKUP_SIDE.build(senderName, renderItems(snapshots[0])),
+                    MessageAssets.LOOKUP_SIDE.build(receptorName, renderItems(snapshots[1]))
+            )), null);
+        });
+    }
+
+    private static @NonNull Component renderItems(@NonNull ItemSnapshot snapshot) {
+        if (snapshot.size() == 0) return MessageAssets.internal("lookup_no_items");
+
+        List<Component> items = new ArrayList<>(snapshot.size());
+        for (ItemStack itemStack : snapshot.toItemStacks()) {
+            items.add(itemStack.displayName().append(Component.text(" x" + itemStack.getAmount())));
+        }
+
+        return Component.join(JoinConfiguration.commas(true), items);
+    }
+
+    /**
+     * Finds the name of a side of the trade without looking up the profile of the player,
+     * which could block the reader thread. The name stored with the trade is used first,
+     * then the name of the player if they are online, and the mojang id otherwise.
+     * @param document the document of the trade
+     * @param side the side of the trade, sender or receptor
+     * @return the name of the player
+     */
+    private static @NonNull String nameOf(@NonNull Document document, @NonNull String side) {
+        String name = document.getString(side + "_name");
+        if (name != null) return name;
+
+        String playerId = document.getString(side + "_id");
+        if (playerId == null) return "?";
+
+        Player player = Bukkit.getPlayer(UUID.fromString(playerId));
+
+        return player != null ? player.getName() : playerId;
+    }
+
+    private static @NonNull String formatDate(@NonNull Document document) {
+        // The backfilled trades don't have their real end time.
+        if (document.getBoolean(TradeHistory.BACKFILLED_FIELD, false)) return "?";
+
+        Date date = document.getDate(TradeHistory.ENDED_AT_FIELD);
+
+        return date != null ? DATE_FORMATTER.format(date.toInstant()) : "?";
+    }
+}
\ No newline at end of file
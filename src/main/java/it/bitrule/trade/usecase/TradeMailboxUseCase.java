@@ -0,0 +1,82 @@
+package it.bitrule.trade.usecase;
+
+import it.bitrule.trade.MessageAssets;
+import it.bitrule.trade.persistence.TradeMailbox;
+import it.bitrule.trade.registry.RequestsRegistry;
+import it.bitrule.trade.registry.TransactionRegistry;
+import it.bitrule.trade.scheduler.TradeScheduler;
+import lombok.NonNull;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+@ThreadAffinity(ThreadAffinity.Kind.ASYNC)
+public final class TradeMailboxUseCase extends TradeUseCase {
+
+    /**
+     * The mailbox where the items that didn't fit in the inventory are stored.
+     */
+    private final @NonNull TradeMailbox mailbox;
+    /**
+     * The settlement used to give the claimed items at once.
+     */
+    private final @NonNull ItemSettlement settlement;
+    /**
+     * The scheduler used to give the claimed items on the thread that owns the player.
+     */
+    private final @NonNull TradeScheduler scheduler;
+
+    public TradeMailboxUseCase(
+            @NonNull TransactionRegistry transactionRegistry,
+            @NonNull RequestsRegistry requestsRegistry,
+            @NonNull TradeMailbox mailbox,
+            @NonNull ItemSettlement settlement,
+            @NonNull TradeScheduler scheduler,
+            @NonNull Logger logger
+    ) {
+        super(transactionRegistry, requestsRegistry, logger);
+
+        this.mailbox = mailbox;
+        this.settlement = settlement;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Delivers the items stored in the mailbox of the player.
+     * The mails are claimed by the mailbox reader thread, and the items are given on the thread that owns the player.
+     * If the player left in the meantime, the items are stored back in the mailbox.
+     * @param player the player who receives the items
+     * @param requested true if the player requested the delivery with the command, false if it's the delivery on join
+     */
+    public void submit(@NonNull Player player, boolean requested) {
+        this.mailbox.claim(player.getUniqueId(), serializedItems -> {
+            if (serializedItems.isEmpty()) {
+                if (requested) player.sendMessage(MessageAssets.MAILBOX_EMPTY.build());
+
+                return;
+            }
+
+            this.scheduler.execute(player, () -> {
+                ItemStack[] itemStacks = deserialize(serializedItems);
+
+                this.settlement.settle(player, itemStacks);
+                player.sendMessage(MessageAssets.MAILBOX_DELIVERED.build(itemStacks.length));
+            }, () -> {
+                if (this.mailbox.post(player.getUniqueId(), serializedItems)) return;
+
+                TradeMailbox.dump(this.logger, player.getUniqueId(), serializedItems, "The mailbox is full");
+            });
+        });
+    }
+
+    private static @NonNull ItemStack @NonNull [] deserialize(@NonNull List<byte[]> serializedItems) {
+        ItemStack[] itemStacks = new ItemStack[serializedItems.size()];
+        for (int index = 0; index < itemStacks.length; index++) {
+            itemStacks[index] = ItemStack.deserializeBytes(serializedItems.get(index));
+        }
+
+        return itemStacks;
+    }
+}
\ No newline at end of file
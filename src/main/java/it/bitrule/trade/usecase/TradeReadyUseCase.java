@@ -4,12 +4,12 @@ import dev.triumphteam.gui.builder.item.ItemBuilder;
 import dev.triumphteam.gui.guis.BaseGui;
 import dev.triumphteam.gui.guis.GuiItem;
 import it.bitrule.trade.MessageAssets;
-import it.bitrule.trade.Trade;
 import it.bitrule.trade.component.Transaction;
 import it.bitrule.trade.manager.TradeManager;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
-import it.bitrule.trade.task.CountdownTask;
+import it.bitrule.trade.scheduler.TradeScheduler;
+import it.bitrule.trade.task.CountdownDriver;
 import lombok.NonNull;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.TextDecoration;
@@ -18,16 +18,14 @@ import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.MAIN)
 public final class TradeReadyUseCase extends TradeUseCase {
 
     public final static @NonNull Function<Player, Inventory> INVENTORY_WRAPPER = p -> {
@@ -38,12 +36,32 @@ public final class TradeReadyUseCase extends TradeUseCase {
         return inv;
     };
 
+    /**
+     * The rendered ready-state items, so the ready toggles and
+     * the countdown ticks only clone an existing item.
+     */
+    private final static @NonNull ReadyItemCache READY_ITEM_CACHE = new ReadyItemCache(256);
+
+    /**
+     * The scheduler used to update the GUI of the recipient.
+     */
+    private final @NonNull TradeScheduler scheduler;
+    /**
+     * The driver of the countdowns of the transactions whose participants are both ready.
+     */
+    private final @NonNull CountdownDriver countdownDriver;
+
     public TradeReadyUseCase(
             @NonNull TransactionRegistry transactionRegistry,
             @NonNull RequestsRegistry requestsRegistry,
+            @NonNull TradeScheduler scheduler,
+            @NonNull CountdownDriver countdownDriver,
             @NonNull Logger logger
     ) {
         super(transactionRegistry, requestsRegistry, logger);
+
+        this.scheduler = scheduler;
+        this.countdownDriver = countdownDriver;
     }
 
     public void submit(@NonNull Player player) {
@@ -56,14 +74,14 @@ public final class TradeReadyUseCase extends TradeUseCase {
             throw new IllegalStateException("Transaction for player " + player.getName() + " has been cancelled.");
         }
 
-        if (transaction.isEnded()) return;
+        // The toggle fails if the transaction started ending or was cancelled by the other participant.
+        int phase = transaction.toggleReady(player.getUniqueId());
+        if (phase == -1) return;
 
         UUID recipientId;
         if (transaction.getSender().equals(player.getUniqueId())) {
-            transaction.setSenderReady(!transaction.isSenderReady());
             recipientId = transaction.getReceptor();
         } else {
-            transaction.setReceptorReady(!transaction.isReceptorReady());
             recipientId = transaction.getSender();
         }
 
@@ -87,29 +105,61 @@ public final class TradeReadyUseCase extends TradeUseCase {
 
         Optional.of(INVENTORY_WRAPPER.apply(player))
                 .map(inv -> (BaseGui) inv.getHolder())
-                .ifPresent(gui -> gui.updateItem(12, getSelfReadyItemStack(player, recipient.getName(), executorReadyState ? 5 : 7)));
-
-        INVENTORY_WRAPPER.apply(recipient).setItem(
-                14,
-                getOtherReadyItemStack(player.getName(), executorReadyState)
+                .ifPresent(gui -> gui.updateItem(12, getSelfReadyItemStack(player, recipient.getName(), executorReadyState ? CountdownDriver.COUNTDOWN_SECONDS : 7)));
+
+        // The GUI of the recipient is owned by the thread of the recipient.
+        // The task runs outside of this call, so its failures are reported from the task itself.
+        ItemStack otherReadyItemStack = getOtherReadyItemStack(player.getName(), executorReadyState);
+        this.scheduler.execute(
+                recipient,
+                () -> {
+                    try {
+                        INVENTORY_WRAPPER.apply(recipient).setItem(14, otherReadyItemStack);
+                    } catch (Exception ex) {
+                        TradeManager.getInstance().handleException(recipient, ex);
+                    }
+                },
+                null
         );
 
-        BukkitRunnable countdownTask = transaction.getBukkitRunnable();
-        if (countdownTask != null && !countdownTask.isCancelled()) {
-            transaction.setBukkitRunnable(null);
-            countdownTask.cancel();
-            return;
+        // The countdown only runs while both players are ready, any change of the ready state stops it.
+        if (phase == Transaction.COUNTDOWN) {
+            this.countdownDriver.start(transaction, player, recipient);
+        } else {
+            this.countdownDriver.stop(transaction);
         }
+    }
 
-        // If either player is not ready, we do not start the countdown
-        if (!transaction.isSenderReady() || !transaction.isReceptorReady()) return;
+    public static @NonNull GuiItem getSelfReadyItemStack(@NonNull Player player, @NonNull String targetPlayerName, int remaining) {
+        return new GuiItem(
+                READY_ITEM_CACHE.get(targetPlayerName, remaining, () -> renderSelfReadyItemStack(targetPlayerName, remaining)),
+                clickEvent -> {
+                    clickEvent.setCancelled(true);
 
-        countdownTask = new CountdownTask(new AtomicInteger(5), transaction, new Player[]{player, recipient});
-        countdownTask.runTaskTimer(JavaPlugin.getProvidingPlugin(Trade.class), 0L, 20L);
-        transaction.setBukkitRunnable(countdownTask);
+                    TradeManager.getInstance().ready(player);
+                });
     }
 
-    public static @NonNull GuiItem getSelfReadyItemStack(@NonNull Player player, @NonNull String targetPlayerName, int remaining) {
+    public static @NonNull ItemStack getOtherReadyItemStack(@NonNull String targetPlayerName, boolean isDone) {
+        return READY_ITEM_CACHE.get(
+                targetPlayerName,
+                isDone ? ReadyItemCache.OTHER_DONE_STATE : ReadyItemCache.OTHER_NOT_DONE_STATE,
+                () -> renderOtherReadyItemStack(targetPlayerName, isDone)
+        );
+    }
+
+    /**
+     * Evicts the ready-state items rendered for the given players.
+     * Called when their transaction ends, so the cache doesn't hold items of players who are not trading.
+     * @param playerNames the names of the players
+     */
+    public static void invalidateReadyItems(@NonNull String... playerNames) {
+        for (String playerName : playerNames) {
+            READY_ITEM_CACHE.invalidate(playerName);
+        }
+    }
+
+    private static @NonNull ItemStack renderSelfReadyItemStack(@NonNull String targetPlayerName, int remaining) {
         List<Component> lore;
         if (remaining == 7) {
             lore = MessageAssets.MENU_STATE_OPTION_LORE_SELF_NOT_DONE.buildMany();
@@ -122,19 +172,13 @@ public final class TradeReadyUseCase extends TradeUseCase {
             );
         }
 
-        return new GuiItem(
-                ItemBuilder.from(remaining == 7 ? Material.RED_CONCRETE : Material.GREEN_CONCRETE)
-                        .name(MessageAssets.internal("menu.state_option.display_name." + (remaining < 6 ? "self_done" : "self_not_done")))
-                        .lore(lore)
-                        .build(),
-                clickEvent -> {
-                    clickEvent.setCancelled(true);
-
-                    TradeManager.getInstance().ready(player);
-                });
+        return ItemBuilder.from(remaining == 7 ? Material.RED_CONCRETE : Material.GREEN_CONCRETE)
+                .name(MessageAssets.internal("menu.state_option.display_name." + (remaining < 6 ? "self_done" : "self_not_done")))
+                .lore(lore)
+                .build();
     }
 
-    public static @NonNull ItemStack getOtherReadyItemStack(@NonNull String targetPlayerName, boolean isDone) {
+    private static @NonNull ItemStack renderOtherReadyItemStack(@NonNull String targetPlayerName, boolean isDone) {
         MessageAssets otherDoneDisplayName = isDone
                 ? MessageAssets.MENU_STATE_OPTION_DISPLAY_NAME_OTHER_DONE
                 : MessageAssets.MENU_STATE_OPTION_DISPLAY_NAME_OTHER_NOT_DONE;
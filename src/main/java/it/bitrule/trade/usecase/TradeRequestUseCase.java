@@ -1,6 +1,8 @@
 package it.bitrule.trade.usecase;
 
 import it.bitrule.trade.MessageAssets;
+import it.bitrule.trade.registry.OnlinePlayerIndex;
+import it.bitrule.trade.registry.RequestRateLimiter;
 import it.bitrule.trade.registry.RequestsRegistry;
 import it.bitrule.trade.registry.TransactionRegistry;
 import lombok.NonNull;
@@ -8,19 +10,47 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.JoinConfiguration;
 import net.kyori.adventure.text.event.ClickEvent;
 import net.kyori.adventure.text.event.HoverEvent;
-import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.logging.Logger;
 
+@ThreadAffinity(ThreadAffinity.Kind.ASYNC)
 public final class TradeRequestUseCase extends TradeUseCase {
 
+    /**
+     * Index of the online players by their name.
+     */
+    private final @NonNull OnlinePlayerIndex onlinePlayerIndex;
+
+    /**
+     * The limiter of the requests each player can send, null if the requests are not limited.
+     */
+    private final @Nullable RequestRateLimiter rateLimiter;
+    /**
+     * The max amount of pending requests a player can send, 0 if it's not limited.
+     */
+    private final int maxOutgoing;
+    /**
+     * The max amount of pending requests a player can receive, 0 if it's not limited.
+     */
+    private final int maxIncoming;
+
     public TradeRequestUseCase(
             @NonNull TransactionRegistry transactionRegistry,
             @NonNull RequestsRegistry requestsRegistry,
+            @NonNull OnlinePlayerIndex onlinePlayerIndex,
+            @Nullable RequestRateLimiter rateLimiter,
+            int maxOutgoing,
+            int maxIncoming,
             @NonNull Logger logger
     ) {
         super(transactionRegistry, requestsRegistry, logger);
+
+        this.onlinePlayerIndex = onlinePlayerIndex;
+        this.rateLimiter = rateLimiter;
+        this.maxOutgoing = maxOutgoing;
+        this.maxIncoming = maxIncoming;
     }
 
     /**
@@ -32,6 +62,18 @@ public final class TradeRequestUseCase extends TradeUseCase {
      * @param receptorName the name of the player who is receiving the trade request
      */
     public void submit(@NonNull Player sender, @NonNull String receptorName) {
+        // Check if the sender is sending requests too fast, before looking up anything else.
+        if (this.rateLimiter != null && !this.rateLimiter.tryAcquire(sender.getUniqueId())) {
+            sender.sendMessage(MessageAssets.REQUEST_RATE_LIMITED.build());
+            return;
+        }
+
+        // Check if the sender has too many pending requests.
+        if (this.maxOutgoing > 0 && this.requestsRegistry.countSent(sender.getUniqueId()) >= this.maxOutgoing) {
+            sender.sendMessage(MessageAssets.SENDER_TOO_MANY_REQUESTS.build());
+            return;
+        }
+
         // Check if the sender is already trading with someone else.
         if (this.transactionRegistry.findByPlayer(sender.getUniqueId()) != null) {
             sender.sendMessage(MessageAssets.SENDER_ALREADY_TRADING.build());
@@ -39,7 +81,7 @@ public final class TradeRequestUseCase extends TradeUseCase {
         }
 
         // Check if the receptor is online.
-        Player receptor = Bukkit.getPlayerExact(receptorName);
+        Player receptor = this.onlinePlayerIndex.findExact(receptorName);
         if (receptor == null || !receptor.isConnected()) {
             sender.sendMessage(MessageAssets.PLAYER_NOT_ONLINE.build(receptorName));
             return;
@@ -69,6 +111,12 @@ public final class TradeRequestUseCase extends TradeUseCase {
             return;
         }
 
+        // Check if the receptor has too many pending requests.
+        if (this.maxIncoming > 0 && this.requestsRegistry.countReceived(receptor.getUniqueId()) >= this.maxIncoming) {
+            sender.sendMessage(MessageAssets.RECEPTOR_TOO_MANY_REQUESTS.build(receptorName));
+            return;
+        }
+
         // Register the request in the registry.
         this.requestsRegistry.register(sender.getUniqueId(), receptor.getUniqueId());
 
@@ -0,0 +1,158 @@
+package it.bitrule.trade.component;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ItemSnapshotCodecTest {
+
+    @Test
+    void roundTripKeepsBothSides() {
+        ItemSnapshot sender = new ItemSnapshot(new int[]{9, 10}, new byte[][]{item(1, 16), item(2, 16)}, new int[]{64, 3});
+        ItemSnapshot receptor = new ItemSnapshot(new int[]{18}, new byte[][]{item(3, 16)}, new int[]{1});
+
+        ItemSnapshot[] decoded = ItemSnapshotCodec.decode(ItemSnapshotCodec.encode(sender, receptor));
+
+        assertEquals(2, decoded.length);
+        assertSnapshotEquals(sender, decoded[0]);
+        assertSnapshotEquals(receptor, decoded[1]);
+    }
+
+    @Test
+    void dictionaryDeduplicatesItemsAcrossSides() {
+        byte[] shared = item(7, 256);
+        ItemSnapshot sender = new ItemSnapshot(new int[]{9, 10}, new byte[][]{shared, shared.clone()}, new int[]{64, 32});
+        ItemSnapshot receptor = new ItemSnapshot(new int[]{18}, new byte[][]{shared.clone()}, new int[]{5});
+
+        byte[] encoded = ItemSnapshotCodec.encode(sender, receptor);
+        ItemSnapshot[] decoded = ItemSnapshotCodec.decode(encoded);
+
+        // The item is stored once, so the encoding is smaller than two copies of it.
+        assertTrue(encoded.length < shared.length * 2, "The shared item was stored more than once");
+
+        assertSame(decoded[0].items()[0], decoded[0].items()[1]);
+        assertSame(decoded[0].items()[0], decoded[1].items()[0]);
+        assertSnapshotEquals(sender, decoded[0]);
+        assertSnapshotEquals(receptor, decoded[1]);
+    }
+
+    @Test
+    void roundTripKeepsEmptySides() {
+        ItemSnapshot empty = new ItemSnapshot(new int[0], new byte[0][], new int[0]);
+        ItemSnapshot receptor = new ItemSnapshot(new int[]{18}, new byte[][]{item(4, 8)}, new int[]{2});
+
+        ItemSnapshot[] decoded = ItemSnapshotCodec.decode(ItemSnapshotCodec.encode(empty, receptor));
+        assertEquals(0, decoded[0].size());
+        assertSnapshotEquals(receptor, decoded[1]);
+
+        ItemSnapshot[] bothEmpty = ItemSnapshotCodec.decode(ItemSnapshotCodec.encode(empty, empty));
+        assertEquals(2, bothEmpty.length);
+        assertEquals(0, bothEmpty[0].size());
+        assertEquals(0, bothEmpty[1].size());
+    }
+
+    @Test
+    void roundTripKeepsMultiByteVarInts() {
+        // 300 and 200 bytes take two varint bytes, 100000 takes three and Integer.MAX_VALUE takes five.
+        ItemSnapshot sender = new ItemSnapshot(
+                new int[]{300, 127, 128},
+                new byte[][]{item(5, 200), item(6, 16_500), item(8, 1)},
+                new int[]{100_000, Integer.MAX_VALUE, 0}
+        );
+
+        ItemSnapshot[] decoded = ItemSnapshotCodec.decode(ItemSnapshotCodec.encode(sender));
+
+        assertEquals(1, decoded.length);
+        assertSnapshotEquals(sender, decoded[0]);
+    }
+
+    @Test
+    void rejectsUnknownVersion() {
+        ItemSnapshot sender = new ItemSnapshot(new int[]{9}, new byte[][]{item(1, 16)}, new int[]{1});
+
+        byte[] encoded = ItemSnapshotCodec.encode(sender);
+        encoded[0] = ItemSnapshotCodec.VERSION + 1;
+
+        assertThrows(IllegalArgumentException.class, () -> ItemSnapshotCodec.decode(encoded));
+    }
+
+    @Test
+    void roundTripKeepsHundredsOfTrades() {
+        Random random = new Random(42L);
+
+        // A pool of items shared by the trades, like the common materials of a server.
+        byte[][] pool = new byte[32][];
+        for (int index = 0; index < pool.length; index++) {
+            pool[index] = item(index, 150 + random.nextInt(300));
+        }
+
+        int trades = 500;
+        ItemSnapshot[][] snapshots = new ItemSnapshot[trades][];
+        for (int trade = 0; trade < trades; trade++) {
+            snapshots[trade] = new ItemSnapshot[]{randomSide(random, pool), randomSide(random, pool)};
+        }
+
+        long rawBytes = 0L;
+        long encodedBytes = 0L;
+        for (ItemSnapshot[] trade : snapshots) {
+            for (ItemSnapshot side : trade) {
+                for (byte[] item : side.items()) rawBytes += item.length;
+            }
+
+            byte[] encoded = ItemSnapshotCodec.encode(trade);
+            encodedBytes += encoded.length;
+
+            ItemSnapshot[] decoded = ItemSnapshotCodec.decode(encoded);
+            assertSnapshotEquals(trade[0], decoded[0]);
+            assertSnapshotEquals(trade[1], decoded[1]);
+        }
+
+        // The items repeated inside a trade are stored once, so the trades take less than their items.
+        assertTrue(encodedBytes < rawBytes, "The trades took " + encodedBytes + " bytes for " + rawBytes + " bytes of items");
+    }
+
+    private static ItemSnapshot randomSide(Random random, byte[][] pool) {
+        int size = random.nextInt(16);
+
+        int[] slots = new int[size];
+        byte[][] items = new byte[size][];
+        int[] amounts = new int[size];
+        for (int index = 0; index < size; index++) {
+            slots[index] = index;
+            items[index] = pool[random.nextInt(pool.length)];
+            amounts[index] = 1 + random.nextInt(64);
+        }
+
+        return new ItemSnapshot(slots, items, amounts);
+    }
+
+    /**
+     * Fakes the bytes of a serialized item. The real bytes come from {@link org.bukkit.inventory.ItemStack#serializeAsBytes()},
+     * which goes through the server internals (Bukkit.getUnsafe()) and can't run without a server,
+     * so the codec is tested with payloads of the same sizes, it never looks inside them.
+     */
+    private static byte[] item(int seed, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        bytes[0] = (byte) (seed >> 8);
+
+        return bytes;
+    }
+
+    private static void assertSnapshotEquals(ItemSnapshot expected, ItemSnapshot actual) {
+        assertArrayEquals(expected.slots(), actual.slots());
+        assertArrayEquals(expected.amounts(), actual.amounts());
+        assertEquals(expected.size(), actual.size());
+
+        for (int index = 0; index < expected.size(); index++) {
+            assertArrayEquals(expected.items()[index], actual.items()[index]);
+        }
+    }
+}
\ No newline at end of file